@@ -0,0 +1,123 @@
+package cz.muni.fi.keycheck;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Key corpora for benchmarks. Keys are generated from a fixed seed, so all
+ * runs measure the same keys, and cached in the target directory, because
+ * generating large primes takes much longer than analysing them. Primes are
+ * generated by the default strategy, so the benchmarks measure primes of the
+ * same distribution as generated keys.
+ *
+ * @author David Formanek
+ */
+class BenchmarkCorpus {
+
+    private static final long SEED = 42;
+    private static final PrimeStrategy STRATEGY = PrimeStrategy.RANDOM;
+    private static final BigInteger EXPONENT = BigInteger.valueOf(65537);
+    private static final Path DIRECTORY = Paths.get("target", "corpus");
+    private static final PrintStream NULL_OUTPUT = new PrintStream(OutputStream.nullOutputStream());
+
+    private BenchmarkCorpus() {
+    }
+
+    /**
+     * @return path of a key file with given count of keys
+     */
+    public static Path file(int primeBits, int keyCount) throws IOException {
+        Path file = DIRECTORY.resolve("keys-" + primeBits + "-" + keyCount + "-"
+                + STRATEGY.name().toLowerCase() + "-" + SEED + ".txt");
+        if (Files.exists(file)) {
+            return file;
+        }
+        Files.createDirectories(DIRECTORY);
+        Path temporary = Files.createTempFile(DIRECTORY, "keys", ".tmp");
+        try (KeyWriter writer = new KeyWriter(Files.newOutputStream(temporary))) {
+            KeyGenerator generator = new KeyGenerator(primeBits, EXPONENT,
+                    STRATEGY, 40, SEED, Runtime.getRuntime().availableProcessors());
+            generator.generate(keyCount, params -> {
+                try {
+                    writer.write(params);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        }
+        Files.move(temporary, file);
+        return file;
+    }
+
+    /**
+     * @return path of the key file converted to the columnar format
+     */
+    public static Path columnarFile(int primeBits, int keyCount) throws IOException {
+        Path text = file(primeBits, keyCount);
+        Path file = DIRECTORY.resolve(text.getFileName().toString().replace(".txt", ".kcs"));
+        if (Files.exists(file)) {
+            return file;
+        }
+        Path temporary = Files.createTempFile(DIRECTORY, "keys", ".tmp");
+        try (ColumnarKeyWriter writer = new ColumnarKeyWriter(temporary, 4096, true)) {
+            for (Params params : keys(primeBits, keyCount)) {
+                writer.write(params);
+            }
+        }
+        Files.move(temporary, file);
+        return file;
+    }
+
+    public static byte[] bytes(int primeBits, int keyCount) throws IOException {
+        return Files.readAllBytes(file(primeBits, keyCount));
+    }
+
+    public static List<Params> keys(int primeBits, int keyCount) throws IOException {
+        List<Params> keys = new ArrayList<>(keyCount);
+        try (KeyReader reader = new KeyReader(new ByteArrayInputStream(bytes(primeBits, keyCount)),
+                "corpus", EnumSet.allOf(KeyField.class))) {
+            for (Params params = reader.next(); params != null; params = reader.next()) {
+                keys.add(params);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return a copy without values derived by previous analysis
+     */
+    public static Params copy(Params params) {
+        Params copy = new Params();
+        copy.setExponent(params.getExponent());
+        copy.setModulus(params.getModulus());
+        copy.setP(params.getP());
+        copy.setQ(params.getQ());
+        copy.setSource(params.getSource());
+        copy.setPosition(params.getPosition());
+        return copy;
+    }
+
+    /**
+     * Runs the action with the standard output discarded, stats print their
+     * results and findings there.
+     */
+    public static void silently(Runnable action) {
+        PrintStream output = System.out;
+        System.setOut(NULL_OUTPUT);
+        try {
+            action.run();
+        } finally {
+            System.setOut(output);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package cz.muni.fi.keycheck;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end analysis of a key file by the default set of stats, from
+ * reading the file to printing the results.
+ *
+ * @author David Formanek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class LoadBenchmark {
+
+    @Param({"512", "1024", "2048"})
+    public int primeBits;
+
+    @Param({"1000"})
+    public int keyCount;
+
+    @Param({"stream", "mapped", "columnar"})
+    public String reader;
+
+    private Path file;
+    private TrialDivision trialDivision;
+    private Findings findings;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = "columnar".equals(reader) ? BenchmarkCorpus.columnarFile(primeBits, keyCount)
+                : BenchmarkCorpus.file(primeBits, keyCount);
+        trialDivision = new TrialDivision(10000);
+        findings = Findings.toStandardOutput();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        BenchmarkCorpus.silently(() -> {
+            try {
+                findings.close();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
+    }
+
+    private Stats createStats(FingerprintIndex primes, FingerprintIndex moduli) {
+        StatsContainer stats = new StatsContainer();
+        stats.add(new BasicStats(true, true, true, true, primes,
+                new KeyValidator(40, 100, findings), findings));
+        stats.add(new PrimeStrengthStats(trialDivision, null, 40, findings));
+        stats.add(new DistributionStats(5, 16, false));
+        stats.add(new ModulusStats(5, moduli, findings));
+        stats.add(new BatchGcdStats(null, findings));
+        return stats;
+    }
+
+    @Benchmark
+    public Stats load() throws IOException {
+        FingerprintIndex primes = new FingerprintIndex(2 * keyCount, false, null);
+        FingerprintIndex moduli = new FingerprintIndex(keyCount, false, null);
+        int threads = Runtime.getRuntime().availableProcessors();
+        ParallelAnalysis analysis = new ParallelAnalysis(() -> createStats(primes, moduli),
+                RandomnessStats::new, threads, 1000);
+        try (KeySource source = openReader(analysis.getRequiredFields())) {
+            for (Params params = source.next(); params != null; params = source.next()) {
+                analysis.process(params);
+            }
+        }
+        Stats result = analysis.finish();
+        BenchmarkCorpus.silently(() -> {
+            result.print();
+            try {
+                findings.flush();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
+        return result;
+    }
+
+    private KeySource openReader(Set<KeyField> fields) throws IOException {
+        switch (reader) {
+            case "mapped":
+                return new MappedKeyReader(file, fields);
+            case "columnar":
+                return new ColumnarKeyReader(file, fields);
+            default:
+                return new KeyReader(new FileInputStream(file.toFile()), file.toString(), fields);
+        }
+    }
+}
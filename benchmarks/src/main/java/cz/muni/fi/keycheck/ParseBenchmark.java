@@ -0,0 +1,64 @@
+package cz.muni.fi.keycheck;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing of TLV key records from memory, one operation parses the corpus.
+ *
+ * @author David Formanek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+
+    @Param({"512", "1024", "2048"})
+    public int primeBits;
+
+    @Param({"1000"})
+    public int keyCount;
+
+    private byte[] corpus;
+
+    @Setup
+    public void setUp() throws IOException {
+        corpus = BenchmarkCorpus.bytes(primeBits, keyCount);
+    }
+
+    @Benchmark
+    public void parseAllFields(Blackhole blackhole) throws IOException {
+        parse(EnumSet.allOf(KeyField.class), blackhole);
+    }
+
+    @Benchmark
+    public void parsePublicKeys(Blackhole blackhole) throws IOException {
+        parse(EnumSet.of(KeyField.EXPONENT, KeyField.MODULUS), blackhole);
+    }
+
+    private void parse(Set<KeyField> fields, Blackhole blackhole) throws IOException {
+        try (KeyReader reader = new KeyReader(new ByteArrayInputStream(corpus), "corpus", fields)) {
+            for (Params params = reader.next(); params != null; params = reader.next()) {
+                blackhole.consume(params);
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package cz.muni.fi.keycheck;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Single stats implementations on a parsed corpus. One operation processes
+ * fresh copies of all keys, so no derived values are cached from previous
+ * operations, and prints the results into a discarded stream, which is where
+ * batch GCD and external sorting do most of their work.
+ *
+ * @author David Formanek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StatsBenchmark {
+
+    private static final Path TEMP_DIRECTORY = Paths.get(System.getProperty("java.io.tmpdir"));
+    private static final Findings FINDINGS = Findings.toStandardOutput();
+
+    @Param({"512", "1024", "2048"})
+    public int primeBits;
+
+    @Param({"1000"})
+    public int keyCount;
+
+    @Param({"validity", "primeUniqueness", "privateExponent", "primeStrength", "distribution",
+        "distributionBytes", "randomness", "randomnessTests", "modulus", "externalUniqueness",
+        "batchGcd"})
+    public String stats;
+
+    private List<Params> keys;
+    private TrialDivision trialDivision;
+    private Stats instance;
+
+    @Setup
+    public void setUp() throws IOException {
+        keys = BenchmarkCorpus.keys(primeBits, keyCount);
+        trialDivision = new TrialDivision(10000);
+    }
+
+    @Setup(Level.Invocation)
+    public void createStats() {
+        instance = create();
+    }
+
+    private Stats create() {
+        switch (stats) {
+            case "validity":
+                return new BasicStats(true, false, false, false, null,
+                        new KeyValidator(40, 100, FINDINGS), FINDINGS);
+            case "primeUniqueness":
+                return new BasicStats(false, false, true, false,
+                        new FingerprintIndex(2 * keyCount, false, null), null, FINDINGS);
+            case "privateExponent":
+                return new BasicStats(false, false, false, true, null, null, FINDINGS);
+            case "primeStrength":
+                return new PrimeStrengthStats(trialDivision, null, 40, FINDINGS);
+            case "distribution":
+                return new DistributionStats(5, 16, false);
+            case "distributionBytes":
+                return new DistributionStats(5, 16, true);
+            case "randomness":
+                return new RandomnessStats();
+            case "randomnessTests":
+                return new RandomnessTests();
+            case "modulus":
+                return new ModulusStats(5, new FingerprintIndex(keyCount, false, null), FINDINGS);
+            case "externalUniqueness":
+                return new ExternalUniquenessStats(256L << 20, TEMP_DIRECTORY, null, FINDINGS);
+            case "batchGcd":
+                return new BatchGcdStats(null, FINDINGS);
+            default:
+                throw new IllegalArgumentException("Unknown stats " + stats);
+        }
+    }
+
+    @Benchmark
+    public Stats process() {
+        for (Params params : keys) {
+            instance.process(BenchmarkCorpus.copy(params));
+        }
+        BenchmarkCorpus.silently(() -> {
+            instance.print();
+            try {
+                FINDINGS.flush();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
+        return instance;
+    }
+}
@@ -1,7 +1,10 @@
 package cz.muni.fi.keycheck;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.math.BigInteger;
-import java.util.HashSet;
+import java.util.EnumSet;
 import java.util.Set;
 
 /**
@@ -19,26 +22,35 @@ class BasicStats implements Stats {
     private long keyCount = 0;
     private long validKeyCount = 0;
     private long duplicitKeyCount = 0;
+    private long likelyDuplicitKeyCount = 0;
     private BigInteger minPrimeDifference = null;
-    private Set<BigInteger> primes = new HashSet<>();
+    private FingerprintIndex primes;
+    private KeyValidator validator;
+    private Findings findings;
     private BigInteger minPrivateExponent = null;
 
     public BasicStats(
             boolean checkValidity,
             boolean checkPrimeDifference,
             boolean checkPrimeUniqueness,
-            boolean checkPrivateExponent
+            boolean checkPrivateExponent,
+            FingerprintIndex primes,
+            KeyValidator validator,
+            Findings findings
     ) {
         this.checkValidity = checkValidity;
         this.checkPrimeDifference = checkPrimeDifference;
         this.checkPrimeUniqueness = checkPrimeUniqueness;
         this.checkPrivateExponent = checkPrivateExponent;
+        this.primes = primes;
+        this.validator = validator;
+        this.findings = findings;
     }
 
     @Override
     public void process(Params params) {
         if (checkValidity) {
-            if (params.isValid()) {
+            if (validator.isValid(params)) {
                 validKeyCount++;
             }
         }
@@ -62,13 +74,19 @@ class BasicStats implements Stats {
     }
 
     private void checkPrimeUniqueness(Params params) {
-        if (!primes.add(params.getP())) {
-            duplicitKeyCount++;
-            System.out.println("Prime " + params.getP() + " is duplicit!");
-        }
-        if (!primes.add(params.getQ())) {
+        checkPrimeUniqueness(params, params.getP());
+        checkPrimeUniqueness(params, params.getQ());
+    }
+
+    private void checkPrimeUniqueness(Params params, BigInteger prime) {
+        FingerprintIndex.Match match = primes.add(prime);
+        if (match == FingerprintIndex.Match.CONFIRMED) {
             duplicitKeyCount++;
-            System.out.println("Prime " + params.getQ() + " is duplicit!");
+            findings.add("duplicate-prime", params, prime, "Prime " + prime + " is duplicit!");
+        } else if (match == FingerprintIndex.Match.UNCONFIRMED) {
+            likelyDuplicitKeyCount++;
+            findings.add("likely-duplicate-prime", params, prime,
+                    "Prime " + prime + " is likely duplicit (fingerprint match)");
         }
     }
 
@@ -79,18 +97,122 @@ class BasicStats implements Stats {
         }
     }
 
+    @Override
+    public void merge(Stats other) {
+        BasicStats stats = (BasicStats) other;
+        keyCount += stats.keyCount;
+        validKeyCount += stats.validKeyCount;
+        duplicitKeyCount += stats.duplicitKeyCount;
+        likelyDuplicitKeyCount += stats.likelyDuplicitKeyCount;
+        if (checkValidity) {
+            validator.merge(stats.validator);
+        }
+        if (checkPrimeUniqueness && stats.primes != primes) {
+            addMatches(primes.addAll(stats.primes));
+        }
+        minPrimeDifference = min(minPrimeDifference, stats.minPrimeDifference);
+        minPrivateExponent = min(minPrivateExponent, stats.minPrivateExponent);
+    }
+
+    @Override
+    public void save(DataOutput output) throws IOException {
+        output.writeLong(keyCount);
+        output.writeLong(validKeyCount);
+        output.writeLong(duplicitKeyCount);
+        output.writeLong(likelyDuplicitKeyCount);
+        Checkpoint.writeNumber(output, minPrimeDifference);
+        Checkpoint.writeNumber(output, minPrivateExponent);
+        if (checkValidity) {
+            validator.save(output);
+        }
+        if (checkPrimeUniqueness) {
+            primes.save(output);
+        }
+    }
+
+    @Override
+    public void load(DataInput input) throws IOException {
+        keyCount += input.readLong();
+        validKeyCount += input.readLong();
+        duplicitKeyCount += input.readLong();
+        likelyDuplicitKeyCount += input.readLong();
+        minPrimeDifference = min(minPrimeDifference, Checkpoint.readNumber(input));
+        minPrivateExponent = min(minPrivateExponent, Checkpoint.readNumber(input));
+        if (checkValidity) {
+            validator.load(input);
+        }
+        if (checkPrimeUniqueness) {
+            addMatches(primes.load(input));
+        }
+    }
+
+    private void addMatches(FingerprintIndex.Matches matches) {
+        duplicitKeyCount += matches.getConfirmed();
+        likelyDuplicitKeyCount += matches.getUnconfirmed();
+    }
+
+    @Override
+    public Set<KeyField> getRequiredFields() {
+        if (checkValidity || checkPrivateExponent) {
+            return EnumSet.allOf(KeyField.class);
+        }
+        if (checkPrimeDifference || checkPrimeUniqueness) {
+            return EnumSet.of(KeyField.P, KeyField.Q);
+        }
+        return EnumSet.noneOf(KeyField.class);
+    }
+
+    private BigInteger min(BigInteger a, BigInteger b) {
+        if (a == null || (b != null && a.compareTo(b) > 0)) {
+            return b;
+        }
+        return a;
+    }
+
+    @Override
+    public void report(ReportWriter writer) throws IOException {
+        writer.beginSection("basic");
+        writer.value("keys", keyCount);
+        if (checkValidity) {
+            writer.value("valid_keys", validKeyCount);
+            writer.value("invalid_keys", keyCount - validKeyCount);
+            validator.report(writer);
+        }
+        if (checkPrimeUniqueness) {
+            writer.value("duplicate_primes", duplicitKeyCount);
+            writer.value("likely_duplicate_primes", likelyDuplicitKeyCount);
+        }
+        if (checkPrivateExponent && minPrivateExponent != null) {
+            writer.value("min_private_exponent", minPrivateExponent.toString(RADIX));
+            writer.value("min_private_exponent_bit_length", minPrivateExponent.bitLength());
+        }
+        if (checkPrimeDifference && minPrimeDifference != null) {
+            writer.value("min_prime_difference", minPrimeDifference.toString(RADIX));
+            writer.value("min_prime_difference_bit_length", minPrimeDifference.bitLength());
+        }
+        writer.endSection();
+    }
+
     @Override
     public void print() {
         if (checkValidity) {
+            long interval = validator.getFullTestInterval();
             System.out.println(validKeyCount + " keys are valid, "
-                    + (keyCount - validKeyCount) + " invalid");
+                    + (keyCount - validKeyCount) + " invalid" + (interval == 1 ? ""
+                    : " (full primality test on 1 in " + interval + " keys)"));
+            validator.print();
         }
         if (checkPrimeUniqueness) {
-            if (duplicitKeyCount == 0) {
+            if (duplicitKeyCount == 0 && likelyDuplicitKeyCount == 0) {
                 System.out.println("All primes are unique");
-            } else {
+            }
+            if (duplicitKeyCount > 0) {
                 System.out.println(duplicitKeyCount + " primes are not unique");
             }
+            if (likelyDuplicitKeyCount > 0) {
+                System.out.println(likelyDuplicitKeyCount + " primes are likely not unique"
+                        + " (fingerprint match, not confirmed)");
+            }
         }
         if (checkPrivateExponent && minPrivateExponent != null) {
             System.out.println("Minimum private exponent: " + minPrivateExponent.toString(RADIX)
@@ -0,0 +1,246 @@
+package cz.muni.fi.keycheck;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds moduli sharing a prime factor with another modulus by Bernstein's
+ * batch GCD. The product of all moduli is reduced modulo the square of each
+ * modulus through a remainder tree, then gcd(P mod N^2 / N, N) is the product
+ * of the factors of N shared with other moduli.
+ * <p>
+ * If the analysis is checkpointed, each instance appends the moduli it
+ * processes to its file in the checkpoint directory and a checkpoint saves
+ * only the paths of the files with their length, so each modulus is written
+ * once.
+ *
+ * @author David Formanek
+ */
+class BatchGcdStats implements Stats {
+
+    private static final int RADIX = 10;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final List<BigInteger> moduli = new ArrayList<>();
+    private final List<String> sources = new ArrayList<>();
+    private final List<Long> positions = new ArrayList<>();
+    private final Path checkpointDirectory;
+    private final Findings findings;
+    private final List<ModuliFile> savedFiles = new ArrayList<>();
+    private ModuliFile appendedFile;
+    private FileChannel appendedChannel;
+    private DataOutputStream appendedOutput;
+    private long sharedFactorCount = -1;
+
+    /**
+     * @param checkpointDirectory directory of the files with moduli, null if
+     * not checkpointed
+     * @param findings sink of the moduli sharing a factor
+     */
+    public BatchGcdStats(Path checkpointDirectory, Findings findings) {
+        this.checkpointDirectory = checkpointDirectory;
+        this.findings = findings;
+    }
+
+    @Override
+    public void process(Params params) {
+        moduli.add(params.getModulus());
+        sources.add(params.getSource());
+        positions.add(params.getPosition());
+        sharedFactorCount = -1;
+        if (checkpointDirectory != null) {
+            try {
+                append(params.getModulus(), params.getSource(), params.getPosition());
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    private void append(BigInteger modulus, String source, long position) throws IOException {
+        if (appendedOutput == null) {
+            if (appendedFile == null) {
+                Files.createDirectories(checkpointDirectory);
+                appendedFile = new ModuliFile(
+                        Files.createTempFile(checkpointDirectory, "keycheck-moduli", ".bin"), 0, 0);
+            }
+            appendedChannel = FileChannel.open(appendedFile.path, StandardOpenOption.WRITE);
+            // drops moduli written after the last checkpoint by an interrupted run
+            appendedChannel.truncate(appendedFile.length);
+            appendedChannel.position(appendedFile.length);
+            appendedOutput = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(appendedChannel), BUFFER_SIZE));
+        }
+        Checkpoint.writeNumber(appendedOutput, modulus);
+        appendedOutput.writeUTF(String.valueOf(source));
+        appendedOutput.writeLong(position);
+        appendedFile.count++;
+    }
+
+    /**
+     * @return the files with moduli of this instance, written up to their
+     * length
+     */
+    private List<ModuliFile> getFiles() throws IOException {
+        List<ModuliFile> files = new ArrayList<>();
+        for (ModuliFile file : savedFiles) {
+            files.add(new ModuliFile(file.path, file.length, file.count));
+        }
+        if (appendedFile != null) {
+            if (appendedOutput != null) {
+                appendedOutput.flush();
+                appendedFile.length = appendedChannel.position();
+            }
+            files.add(new ModuliFile(appendedFile.path, appendedFile.length, appendedFile.count));
+        }
+        return files;
+    }
+
+    @Override
+    public Set<KeyField> getRequiredFields() {
+        return EnumSet.of(KeyField.MODULUS);
+    }
+
+    @Override
+    public void merge(Stats other) {
+        BatchGcdStats stats = (BatchGcdStats) other;
+        moduli.addAll(stats.moduli);
+        sources.addAll(stats.sources);
+        positions.addAll(stats.positions);
+        try {
+            savedFiles.addAll(stats.getFiles());
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        sharedFactorCount = -1;
+    }
+
+    /**
+     * Writes the paths of the files with moduli and their length.
+     */
+    @Override
+    public void save(DataOutput output) throws IOException {
+        List<ModuliFile> files = getFiles();
+        output.writeInt(files.size());
+        for (ModuliFile file : files) {
+            Checkpoint.writePath(output, file.path);
+            output.writeLong(file.length);
+            output.writeInt(file.count);
+        }
+    }
+
+    /**
+     * Reads the moduli from the saved files. Moduli processed later are
+     * appended to the last of the files.
+     */
+    @Override
+    public void load(DataInput input) throws IOException {
+        int fileCount = input.readInt();
+        for (int i = 0; i < fileCount; i++) {
+            ModuliFile file = new ModuliFile(Checkpoint.readPath(input), input.readLong(),
+                    input.readInt());
+            try (DataInputStream fileInput = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(file.path), BUFFER_SIZE))) {
+                for (int j = 0; j < file.count; j++) {
+                    moduli.add(Checkpoint.readNumber(fileInput));
+                    sources.add(fileInput.readUTF());
+                    positions.add(fileInput.readLong());
+                }
+            }
+            if (appendedFile == null && i == fileCount - 1) {
+                appendedFile = file;
+            } else {
+                savedFiles.add(file);
+            }
+        }
+        sharedFactorCount = -1;
+    }
+
+    private long findSharedFactors() {
+        if (moduli.isEmpty()) {
+            return 0;
+        }
+        ProductTree tree = new ProductTree(moduli, true);
+        BigInteger[] remainders = tree.remainders(tree.getProduct(), true);
+        long count = 0;
+        for (int i = 0; i < moduli.size(); i++) {
+            BigInteger modulus = moduli.get(i);
+            BigInteger gcd = remainders[i].divide(modulus).gcd(modulus);
+            if (gcd.equals(BigInteger.ONE)) {
+                continue;
+            }
+            count++;
+            String record = sources.get(i) + "@" + positions.get(i);
+            if (gcd.equals(modulus)) {
+                findings.add("shared-factor", sources.get(i), positions.get(i), gcd,
+                        "Modulus " + modulus.toString(RADIX) + " (" + record
+                        + ") shares all its factors with other moduli");
+            } else {
+                findings.add("shared-factor", sources.get(i), positions.get(i), gcd,
+                        "Modulus " + modulus.toString(RADIX) + " (" + record
+                        + ") shares factor " + gcd.toString(RADIX) + " with other moduli");
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void report(ReportWriter writer) throws IOException {
+        if (sharedFactorCount < 0) {
+            sharedFactorCount = findSharedFactors();
+        }
+        writer.beginSection("batch_gcd");
+        writer.value("moduli", moduli.size());
+        writer.value("moduli_sharing_factor", sharedFactorCount);
+        writer.endSection();
+    }
+
+    @Override
+    public void print() {
+        if (sharedFactorCount < 0) {
+            sharedFactorCount = findSharedFactors();
+        }
+        try {
+            findings.flush();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        if (sharedFactorCount == 0) {
+            System.out.println("No modulus shares a factor with other modulus");
+        } else {
+            System.out.println(sharedFactorCount + " moduli share a factor with other modulus");
+        }
+    }
+
+    /**
+     * File with moduli, of which the first length bytes hold count moduli.
+     */
+    private static class ModuliFile {
+
+        private final Path path;
+        private long length;
+        private int count;
+
+        ModuliFile(Path path, long length, int count) {
+            this.path = path;
+            this.length = length;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package cz.muni.fi.keycheck;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Set of 64-bit hashes with false positives and no false negatives, in fixed
+ * memory of a power of two bits. Bits are set atomically, so the filter can
+ * be shared by several threads. A filter can be written to a file, so that
+ * values of past runs are remembered.
+ *
+ * @author David Formanek
+ */
+class BloomFilter {
+
+    private static final int MAGIC = 0x4b434246; // KCBF
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final long[] words;
+    private final long mask;
+    private final int hashCount;
+
+    /**
+     * @param sizeBytes memory of the filter, rounded down to a power of two
+     * @param hashCount count of bits set for each value
+     */
+    public BloomFilter(long sizeBytes, int hashCount) {
+        long bits = Long.highestOneBit(Math.max(sizeBytes, Long.BYTES) * Byte.SIZE);
+        if (bits / Long.SIZE > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Filter size " + sizeBytes + " B is too big");
+        }
+        if (hashCount < 1) {
+            throw new IllegalArgumentException("Hash count " + hashCount + " is not positive");
+        }
+        words = new long[(int) (bits / Long.SIZE)];
+        mask = bits - 1;
+        this.hashCount = hashCount;
+    }
+
+    /**
+     * Adds the value.
+     *
+     * @return true if the value was possibly added before
+     */
+    public boolean add(long hash) {
+        // double hashing, the odd step visits distinct bits
+        long step = Long.rotateLeft(hash, 32) | 1;
+        boolean present = true;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = (hash + i * step) & mask;
+            long word = 1L << bit;
+            long previous = (long) WORDS.getAndBitwiseOr(words, (int) (bit >>> 6), word);
+            if ((previous & word) == 0) {
+                present = false;
+            }
+        }
+        return present;
+    }
+
+    public long getBitCount() {
+        return mask + 1;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    /**
+     * @return fraction of bits set
+     */
+    public double getFill() {
+        long set = 0;
+        for (int i = 0; i < words.length; i++) {
+            set += Long.bitCount((long) WORDS.getVolatile(words, i));
+        }
+        return (double) set / getBitCount();
+    }
+
+    /**
+     * @return estimated count of distinct values added
+     */
+    public long estimateCount() {
+        return Math.round(-getBitCount() / (double) hashCount * Math.log1p(-getFill()));
+    }
+
+    /**
+     * @return probability that a new value is reported as present
+     */
+    public double getFalsePositiveProbability() {
+        return Math.pow(getFill(), hashCount);
+    }
+
+    /**
+     * Adds all values of the other filter of the same size.
+     */
+    public void merge(BloomFilter other) {
+        if (other.mask != mask || other.hashCount != hashCount) {
+            throw new IllegalArgumentException("Filters of different parameters cannot be merged");
+        }
+        for (int i = 0; i < words.length; i++) {
+            WORDS.getAndBitwiseOr(words, i, (long) WORDS.getVolatile(other.words, i));
+        }
+    }
+
+    public void save(DataOutput output) throws IOException {
+        output.writeInt(MAGIC);
+        output.writeInt(hashCount);
+        output.writeLong(getBitCount());
+        for (int i = 0; i < words.length; i++) {
+            output.writeLong((long) WORDS.getVolatile(words, i));
+        }
+    }
+
+    /**
+     * @return filter written by save()
+     */
+    public static BloomFilter read(DataInput input) throws IOException {
+        if (input.readInt() != MAGIC) {
+            throw new IOException("Not a Bloom filter");
+        }
+        int hashCount = input.readInt();
+        long bits = input.readLong();
+        if (Long.bitCount(bits) != 1 || bits < Long.SIZE) {
+            throw new IOException("Invalid Bloom filter size " + bits);
+        }
+        BloomFilter filter = new BloomFilter(bits / Byte.SIZE, hashCount);
+        for (int i = 0; i < filter.words.length; i++) {
+            filter.words[i] = input.readLong();
+        }
+        return filter;
+    }
+
+    /**
+     * Writes the filter to the file atomically, by replacing it.
+     */
+    public void write(Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+            save(output);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static BloomFilter read(Path file) throws IOException {
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            return read(input);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package cz.muni.fi.keycheck;
+
+/**
+ * Providers of the stats of this package, see StatsProvider.
+ *
+ * @author David Formanek
+ */
+final class BuiltinStats {
+
+    private BuiltinStats() {
+    }
+
+    public static class Basic implements StatsProvider {
+
+        @Override
+        public String getName() {
+            return "basic";
+        }
+
+        @Override
+        public Kind getKind() {
+            return Kind.STANDARD;
+        }
+
+        @Override
+        public boolean isPrivate() {
+            return true;
+        }
+
+        @Override
+        public Stats create(StatsContext context) {
+            Config config = context.getConfig();
+            boolean checkUniqueness = config.getBoolean("basic.prime-uniqueness", true)
+                    && !context.isSelected("external-uniqueness");
+            return new BasicStats(
+                    config.getBoolean("basic.validity", true),
+                    config.getBoolean("basic.prime-difference", true),
+                    checkUniqueness,
+                    config.getBoolean("basic.private-exponent", true),
+                    checkUniqueness ? context.getPrimeIndex() : null,
+                    new KeyValidator(context.getPrimeCertainity(),
+                            config.getLong("basic.full-test-interval", 100),
+                            context.getFindings()),
+                    context.getFindings()
+            );
+        }
+    }
+
+    public static class PrimeStrength implements StatsProvider {
+
+        @Override
+        public String getName() {
+            return "prime-strength";
+        }
+
+        @Override
+        public Kind getKind() {
+            return Kind.STANDARD;
+        }
+
+        @Override
+        public boolean isPrivate() {
+            return true;
+        }
+
+        @Override
+        public Stats create(StatsContext context) {
+            return new PrimeStrengthStats(
+                    context.getTrialDivision(),
+                    context.getLargestFactorAnalysis(),
+                    context.getPrimeCertainity(),
+                    context.getFindings()
+            );
+        }
+    }
+
+    public static class Distribution implements StatsProvider {
+
+        @Override
+        public String getName() {
+            return "distribution";
+        }
+
+        @Override
+        public Kind getKind() {
+            return Kind.STANDARD;
+        }
+
+        @Override
+        public boolean isPrivate() {
+            return true;
+        }
+
+        @Override
+        public Stats create(StatsContext context) {
+            Config config = context.getConfig();
+            return new DistributionStats(context.getBitsForInterval(),
+                    config.getInt("distribution.bits-for-percentiles", 16),
+                    config.getBoolean("distribution.bytes", false));
+        }
+    }
+
+    public static class Modulus implements StatsProvider {
+
+        @Override
+        public String getName() {
+            return "modulus";
+        }
+
+        @Override
+        public Kind getKind() {
+            return Kind.STANDARD;
+        }
+
+        @Override
+        public boolean isPrivate() {
+            return false;
+        }
+
+        @Override
+        public Stats create(StatsContext context) {
+            return new ModulusStats(context.getBitsForInterval(), context.getModulusIndex(),
+                    context.getFindings());
+        }
+    }
+
+    public static class ExternalUniqueness implements StatsProvider {
+
+        @Override
+        public String getName() {
+            return "external-uniqueness";
+        }
+
+        @Override
+        public Kind getKind() {
+            return Kind.SHARED;
+        }
+
+        @Override
+        public boolean isPrivate() {
+            return true;
+        }
+
+        @Override
+        public Stats create(StatsContext context) {
+            Config config = context.getConfig();
+            return new ExternalUniquenessStats(
+                    config.getLong("external-uniqueness.memory", 256L << 20) / context.getThreads(),
+                    context.getPath("external-uniqueness.directory",
+                            System.getProperty("java.io.tmpdir")),
+                    context.getCheckpointDirectory(),
+                    context.getFindings()
+            );
+        }
+    }
+
+    public static class BatchGcd implements StatsProvider {
+
+        @Override
+        public String getName() {
+            return "batch-gcd";
+        }
+
+        @Override
+        public Kind getKind() {
+            return Kind.SHARED;
+        }
+
+        @Override
+        public boolean isPrivate() {
+            return false;
+        }
+
+        @Override
+        public Stats create(StatsContext context) {
+            return new BatchGcdStats(context.getCheckpointDirectory(), context.getFindings());
+        }
+    }
+
+    public static class Sketch implements StatsProvider {
+
+        @Override
+        public String getName() {
+            return "sketch";
+        }
+
+        @Override
+        public Kind getKind() {
+            return Kind.STANDARD;
+        }
+
+        @Override
+        public boolean isPrivate() {
+            return true;
+        }
+
+        @Override
+        public Stats create(StatsContext context) {
+            Config config = context.getConfig();
+            return new SketchStats(config.getInt("sketch.precision", 14),
+                    config.getBoolean("sketch.filter", true) ? context.getSeenPrimes() : null,
+                    context.getFindings());
+        }
+    }
+
+    public static class RandomnessBattery implements StatsProvider {
+
+        @Override
+        public String getName() {
+            return "randomness-tests";
+        }
+
+        @Override
+        public Kind getKind() {
+            return Kind.ORDERED;
+        }
+
+        @Override
+        public boolean isPrivate() {
+            return true;
+        }
+
+        @Override
+        public Stats create(StatsContext context) {
+            return new RandomnessTests();
+        }
+    }
+
+    public static class Randomness implements StatsProvider {
+
+        @Override
+        public String getName() {
+            return "randomness";
+        }
+
+        @Override
+        public Kind getKind() {
+            return Kind.ORDERED;
+        }
+
+        @Override
+        public boolean isPrivate() {
+            return true;
+        }
+
+        @Override
+        public Stats create(StatsContext context) {
+            return new RandomnessStats();
+        }
+    }
+}
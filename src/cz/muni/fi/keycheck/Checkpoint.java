@@ -0,0 +1,208 @@
+package cz.muni.fi.keycheck;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Snapshot of an analysis, the state of all stats and the offsets up to which
+ * the input files were processed. An analysis restored from a checkpoint
+ * continues each file from its offset, which resumes an interrupted run as
+ * well as analyses only the records appended to the files since.
+ * <p>
+ * Large state, e.g. sorted runs of primes, is not copied into the checkpoint.
+ * Stats keep it in files of the data directory next to the checkpoint and
+ * save only the paths, so the directory has to be kept with the checkpoint.
+ * Files of the directory not referenced by a written checkpoint, e.g. left by
+ * an interrupted run, are deleted.
+ * <p>
+ * Objects shared by stats of several workers or groups, e.g. indices of
+ * primes, are written only at their first occurrence.
+ *
+ * @author David Formanek
+ */
+class Checkpoint {
+
+    private static final int MAGIC = 0x4b434350;
+    private static final int VERSION = 1;
+
+    private final Map<String, Long> offsets = new LinkedHashMap<>();
+    private long keyCount = 0;
+
+    /**
+     * @return directory of the files referenced by the checkpoint
+     */
+    public static Path getDataDirectory(Path checkpoint) {
+        return checkpoint.resolveSibling(checkpoint.getFileName() + ".data");
+    }
+
+    /**
+     * @return offset of the first record of the file not processed yet
+     */
+    public long getOffset(String file) {
+        return offsets.getOrDefault(file, 0L);
+    }
+
+    public void setOffset(String file, long offset) {
+        offsets.put(file, offset);
+    }
+
+    /**
+     * @return count of keys processed before the checkpoint
+     */
+    public long getKeyCount() {
+        return keyCount;
+    }
+
+    public void setKeyCount(long keyCount) {
+        this.keyCount = keyCount;
+    }
+
+    /**
+     * Writes the checkpoint, replacing the previous one only when complete.
+     * Then deletes the files of the data directory the checkpoint does not
+     * reference, so it must be called when no stats write new files.
+     */
+    public void write(Path path, Stats stats) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+        Output output = new Output(
+                new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16));
+        try (output) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(keyCount);
+            output.writeInt(offsets.size());
+            for (Map.Entry<String, Long> entry : offsets.entrySet()) {
+                output.writeUTF(entry.getKey());
+                output.writeLong(entry.getValue());
+            }
+            stats.save(output);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(temporary);
+            throw ex;
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        deleteUnreferenced(getDataDirectory(path), output.files);
+    }
+
+    private static void deleteUnreferenced(Path directory, Set<Path> referenced)
+            throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                if (!referenced.contains(file.toAbsolutePath().normalize())) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a checkpoint and restores the state of stats created with the
+     * same parameters as the saved ones.
+     */
+    public static Checkpoint read(Path path, Stats stats) throws IOException {
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("File '" + path + "' is not a checkpoint of this version");
+            }
+            Checkpoint checkpoint = new Checkpoint();
+            checkpoint.keyCount = input.readLong();
+            int fileCount = input.readInt();
+            for (int i = 0; i < fileCount; i++) {
+                checkpoint.offsets.put(input.readUTF(), input.readLong());
+            }
+            stats.load(input);
+            return checkpoint;
+        }
+    }
+
+    /**
+     * Writes the path of a file referenced by the checkpoint.
+     */
+    static void writePath(DataOutput output, Path file) throws IOException {
+        output.writeUTF(file.toString());
+        if (output instanceof Output) {
+            ((Output) output).files.add(file.toAbsolutePath().normalize());
+        }
+    }
+
+    static Path readPath(DataInput input) throws IOException {
+        return Paths.get(input.readUTF());
+    }
+
+    /**
+     * Writes whether the shared object should be written at this point, which
+     * is its first occurrence in the checkpoint. The flag is read back by
+     * readShared().
+     */
+    static boolean writeShared(DataOutput output, Object shared) throws IOException {
+        boolean first = !(output instanceof Output) || ((Output) output).sharedObjects.add(shared);
+        output.writeBoolean(first);
+        return first;
+    }
+
+    /**
+     * @return whether the shared object follows
+     */
+    static boolean readShared(DataInput input) throws IOException {
+        return input.readBoolean();
+    }
+
+    static void writeNumber(DataOutput output, BigInteger value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.toByteArray();
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    static BigInteger readNumber(DataInput input) throws IOException {
+        int length = input.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new BigInteger(bytes);
+    }
+
+    /**
+     * Output of a checkpoint, tracks the referenced files and the shared
+     * objects already written.
+     */
+    private static class Output extends DataOutputStream {
+
+        private final Set<Path> files = new HashSet<>();
+        private final Set<Object> sharedObjects =
+                Collections.newSetFromMap(new IdentityHashMap<>());
+
+        Output(OutputStream output) {
+            super(output);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package cz.muni.fi.keycheck;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads keys from a memory mapped file written by ColumnarKeyWriter. Chunks
+ * of fields which are not required are skipped without decoding. Keys are
+ * addressed by their index in the file, which is also their position, so
+ * a file can be split into ranges of keys read by several readers.
+ *
+ * @author David Formanek
+ */
+class ColumnarKeyReader implements KeySource {
+
+    private static final long WINDOW_SIZE = 1L << 28;
+    private static final int COLUMNS = KeyField.values().length;
+
+    private final FileChannel channel;
+    private final String source;
+    private final boolean[] required = new boolean[COLUMNS];
+    private final long size;
+    private final long endKey;
+    private final Inflater inflater = new Inflater();
+    private final byte[][] chunks = new byte[COLUMNS][0];
+    private final int[] widths = new int[COLUMNS];
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long blockOffset = ColumnarKeyWriter.HEADER_SIZE;
+    private long blockStartKey = 0;
+    private int blockKeyCount = 0;
+    private long nextKey;
+
+    public ColumnarKeyReader(Path path, Set<KeyField> fields) throws IOException {
+        this(path, 0, Long.MAX_VALUE, fields);
+    }
+
+    /**
+     * Reads keys with indices in [startKey, endKey).
+     */
+    public ColumnarKeyReader(Path path, long startKey, long endKey, Set<KeyField> fields)
+            throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        source = path.toString();
+        for (KeyField field : fields) {
+            required[field.ordinal()] = true;
+        }
+        long keyCount;
+        try {
+            size = channel.size();
+            keyCount = readHeader(channel, source);
+            if (startKey > keyCount) {
+                throw new IOException("File '" + source + "' has only " + keyCount + " keys");
+            }
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        this.endKey = Math.min(endKey, keyCount);
+        nextKey = startKey;
+    }
+
+    /**
+     * @return count of keys in the file
+     */
+    private static long readHeader(FileChannel channel, String source) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(ColumnarKeyWriter.HEADER_SIZE);
+        while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+            // read the whole header
+        }
+        header.flip();
+        if (header.remaining() < ColumnarKeyWriter.HEADER_SIZE
+                || header.getInt() != ColumnarKeyWriter.MAGIC) {
+            throw new IOException("File '" + source + "' is not a columnar key file");
+        }
+        int version = header.getInt();
+        if (version != ColumnarKeyWriter.VERSION) {
+            throw new IOException("Unsupported version " + version + " of file '" + source + "'");
+        }
+        header.getInt();
+        return header.getLong();
+    }
+
+    /**
+     * @return whether the file starts as a columnar key file
+     */
+    public static boolean isColumnar(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+            channel.read(magic, 0);
+            return !magic.hasRemaining() && magic.getInt(0) == ColumnarKeyWriter.MAGIC;
+        }
+    }
+
+    @Override
+    public Params next() throws IOException {
+        if (nextKey >= endKey) {
+            return null;
+        }
+        while (nextKey >= blockStartKey + blockKeyCount) {
+            nextBlock();
+        }
+        int index = (int) (nextKey - blockStartKey);
+        Params params = new Params();
+        params.setSource(source);
+        params.setPosition(nextKey);
+        params.setExponent(getValue(KeyField.EXPONENT, index));
+        params.setModulus(getValue(KeyField.MODULUS, index));
+        params.setP(getValue(KeyField.P, index));
+        params.setQ(getValue(KeyField.Q, index));
+        nextKey++;
+        return params;
+    }
+
+    private BigInteger getValue(KeyField field, int index) {
+        int column = field.ordinal();
+        if (!required[column] || widths[column] == 0) {
+            return null;
+        }
+        return new BigInteger(1, chunks[column], index * widths[column], widths[column]);
+    }
+
+    /**
+     * The reading can be later resumed from the returned key index.
+     */
+    @Override
+    public long getOffset() {
+        return nextKey;
+    }
+
+    /**
+     * Moves to the next block, decoding its chunks only if it contains the
+     * next key.
+     */
+    private void nextBlock() throws IOException {
+        blockStartKey += blockKeyCount;
+        ByteBuffer block = map(blockOffset, 2 * Integer.BYTES);
+        int blockLength = block.getInt();
+        blockKeyCount = block.getInt();
+        if (nextKey < blockStartKey + blockKeyCount) {
+            block = map(blockOffset, Integer.BYTES + blockLength);
+            block.position(2 * Integer.BYTES);
+            for (int column = 0; column < COLUMNS; column++) {
+                int width = block.getInt();
+                byte codec = block.get();
+                int length = block.getInt();
+                int dataStart = block.position();
+                widths[column] = width;
+                if (required[column] && width > 0) {
+                    decode(column, block.slice(dataStart, length), codec,
+                            width * blockKeyCount);
+                }
+                block.position(dataStart + length);
+            }
+        }
+        blockOffset += Integer.BYTES + blockLength;
+    }
+
+    private void decode(int column, ByteBuffer data, byte codec, int length)
+            throws IOException {
+        if (chunks[column].length < length) {
+            chunks[column] = new byte[length];
+        }
+        if (codec == ColumnarKeyWriter.RAW) {
+            data.get(chunks[column], 0, length);
+            return;
+        }
+        if (codec != ColumnarKeyWriter.DEFLATE) {
+            throw new IOException("Unknown codec " + codec + " in file '" + source + "'");
+        }
+        inflater.reset();
+        inflater.setInput(data);
+        try {
+            int decoded = 0;
+            while (decoded < length && !inflater.finished()) {
+                int inflated = inflater.inflate(chunks[column], decoded, length - decoded);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                decoded += inflated;
+            }
+            if (decoded != length) {
+                throw new IOException("Truncated chunk in file '" + source + "'");
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupted chunk in file '" + source + "'", ex);
+        }
+    }
+
+    /**
+     * @return buffer of the region, positioned at its start
+     */
+    private ByteBuffer map(long start, int length) throws IOException {
+        if (start + length > size) {
+            throw new IOException("Truncated block at offset " + start + " of file '"
+                    + source + "'");
+        }
+        if (window == null || start < windowStart
+                || start + length > windowStart + window.limit()) {
+            windowStart = start;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                    Math.min(Math.max(WINDOW_SIZE, length), size - start));
+        }
+        return window.slice((int) (start - windowStart), length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        channel.close();
+    }
+
+    /**
+     * Splits keys of the file from the start index into at most given count
+     * of ranges of similar size, which are aligned to blocks except the first
+     * one.
+     *
+     * @return range boundaries, range i is [boundaries[i], boundaries[i + 1])
+     */
+    public static long[] split(Path path, long start, int count) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long keyCount = readHeader(channel, path.toString());
+            if (start > keyCount) {
+                throw new IOException("File '" + path + "' has only " + keyCount + " keys");
+            }
+            long[] boundaries = new long[count + 1];
+            boundaries[0] = start;
+            int ranges = 0;
+            long offset = ColumnarKeyWriter.HEADER_SIZE;
+            long blockStartKey = 0;
+            ByteBuffer blockHeader = ByteBuffer.allocate(2 * Integer.BYTES);
+            while (blockStartKey < keyCount && ranges + 1 < count) {
+                long target = start + (ranges + 1) * ((keyCount - start) / count);
+                if (blockStartKey >= target && blockStartKey > boundaries[ranges]) {
+                    boundaries[++ranges] = blockStartKey;
+                }
+                blockHeader.clear();
+                if (channel.read(blockHeader, offset) < blockHeader.capacity()) {
+                    throw new IOException("Truncated block at offset " + offset
+                            + " of file '" + path + "'");
+                }
+                offset += Integer.BYTES + blockHeader.getInt(0);
+                blockStartKey += blockHeader.getInt(Integer.BYTES);
+            }
+            boundaries[++ranges] = keyCount;
+            long[] result = new long[ranges + 1];
+            System.arraycopy(boundaries, 0, result, 0, ranges + 1);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package cz.muni.fi.keycheck;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Options of a run given on the command line or in a properties file.
+ * Arguments --name=value set options, --name alone sets a boolean option,
+ * --config=file reads options from the file and other arguments are key
+ * files. Options on the command line override those from the file.
+ *
+ * @author David Formanek
+ */
+class Config {
+
+    private static final String PREFIX = "--";
+    private static final String CONFIG_FILE = "config";
+
+    private final Properties options = new Properties();
+    private final List<String> files = new ArrayList<>();
+    private final Set<String> usedNames = new HashSet<>();
+
+    /**
+     * @throws IllegalArgumentException if an argument is malformed
+     */
+    public static Config parse(String[] args) throws IOException {
+        Config config = new Config();
+        Properties commandLine = new Properties();
+        for (String arg : args) {
+            if (!arg.startsWith(PREFIX)) {
+                config.files.add(arg);
+                continue;
+            }
+            int separator = arg.indexOf('=');
+            String name = separator < 0 ? arg.substring(PREFIX.length())
+                    : arg.substring(PREFIX.length(), separator);
+            if (name.isEmpty()) {
+                throw new IllegalArgumentException("Option name missing in '" + arg + "'");
+            }
+            commandLine.setProperty(name, separator < 0 ? "true" : arg.substring(separator + 1));
+        }
+        String configFile = commandLine.getProperty(CONFIG_FILE);
+        if (configFile != null) {
+            try (Reader reader = Files.newBufferedReader(Paths.get(configFile),
+                    StandardCharsets.UTF_8)) {
+                config.options.load(reader);
+            }
+            commandLine.remove(CONFIG_FILE);
+        }
+        config.options.putAll(commandLine);
+        return config;
+    }
+
+    /**
+     * @return arguments which are not options
+     */
+    public List<String> getFiles() {
+        return Collections.unmodifiableList(files);
+    }
+
+    public String getString(String name, String defaultValue) {
+        usedNames.add(name);
+        String value = options.getProperty(name);
+        return value == null ? defaultValue : value.trim();
+    }
+
+    public boolean getBoolean(String name, boolean defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        switch (value.toLowerCase(Locale.ROOT)) {
+            case "true":
+            case "yes":
+            case "on":
+                return true;
+            case "false":
+            case "no":
+            case "off":
+                return false;
+            default:
+                throw invalid(name, value, "not a boolean");
+        }
+    }
+
+    public int getInt(String name, int defaultValue) {
+        long value = getLong(name, defaultValue);
+        if (value != (int) value) {
+            throw invalid(name, Long.toString(value), "out of range");
+        }
+        return (int) value;
+    }
+
+    /**
+     * Underscores may separate digits, e.g. 1_000_000.
+     */
+    public long getLong(String name, long defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.replace("_", ""));
+        } catch (NumberFormatException ex) {
+            throw invalid(name, value, "not an integer");
+        }
+    }
+
+    public <E extends Enum<E>> E getEnum(String name, Class<E> type, E defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(type, value.toUpperCase(Locale.ROOT).replace('-', '_'));
+        } catch (IllegalArgumentException ex) {
+            throw invalid(name, value, "not one of " + Arrays.toString(type.getEnumConstants()));
+        }
+    }
+
+    /**
+     * @return comma separated values
+     */
+    public List<String> getList(String name, List<String> defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        List<String> values = new ArrayList<>();
+        for (String item : value.split(",")) {
+            if (!item.trim().isEmpty()) {
+                values.add(item.trim());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return names of options never read, e.g. misspelled options
+     */
+    public Set<String> getUnusedNames() {
+        Set<String> unused = new TreeSet<>(options.stringPropertyNames());
+        unused.removeAll(usedNames);
+        return unused;
+    }
+
+    private static IllegalArgumentException invalid(String name, String value, String reason) {
+        return new IllegalArgumentException("Value '" + value + "' of option '" + name
+                + "' is " + reason);
+    }
+}
@@ -0,0 +1,98 @@
+package cz.muni.fi.keycheck;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the report as CSV rows of section, name, key and value. The section
+ * is the path of nested sections separated by slashes, the key is empty for
+ * single values and the counted value for counts.
+ *
+ * @author David Formanek
+ */
+class CsvReportWriter implements ReportWriter {
+
+    private final Writer writer;
+    private final List<String> sections = new ArrayList<>();
+    private String section = "";
+
+    public CsvReportWriter(Writer writer) throws IOException {
+        this.writer = writer;
+        writer.write("section,name,key,value\n");
+    }
+
+    @Override
+    public void beginSection(String name) throws IOException {
+        sections.add(name);
+        section = String.join("/", sections);
+    }
+
+    @Override
+    public void endSection() throws IOException {
+        if (sections.isEmpty()) {
+            throw new IllegalStateException("No section to end");
+        }
+        sections.remove(sections.size() - 1);
+        section = String.join("/", sections);
+    }
+
+    @Override
+    public void value(String name, long value) throws IOException {
+        writeRow(name, "", Long.toString(value));
+    }
+
+    @Override
+    public void value(String name, double value) throws IOException {
+        writeRow(name, "", Double.isFinite(value) ? Double.toString(value) : "");
+    }
+
+    @Override
+    public void value(String name, boolean value) throws IOException {
+        writeRow(name, "", Boolean.toString(value));
+    }
+
+    @Override
+    public void value(String name, String value) throws IOException {
+        writeRow(name, "", value == null ? "" : value);
+    }
+
+    @Override
+    public void counts(String name, Histogram histogram) throws IOException {
+        for (int value : histogram.getValues()) {
+            writeRow(name, Integer.toString(value), Long.toString(histogram.get(value)));
+        }
+    }
+
+    @Override
+    public void counts(String name, Map<String, Long> counts) throws IOException {
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            writeRow(name, entry.getKey(), Long.toString(entry.getValue()));
+        }
+    }
+
+    private void writeRow(String name, String key, String value) throws IOException {
+        writer.write(escape(section));
+        writer.write(',');
+        writer.write(escape(name));
+        writer.write(',');
+        writer.write(escape(key));
+        writer.write(',');
+        writer.write(escape(value));
+        writer.write('\n');
+    }
+
+    private static String escape(String field) {
+        if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0) {
+            return field;
+        }
+        return '"' + field.replace("\"", "\"\"") + '"';
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -1,63 +1,186 @@
 package cz.muni.fi.keycheck;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.math.BigInteger;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.EnumSet;
+import java.util.Set;
 
 /**
+ * Distribution of the leading bits of primes and optionally of their bytes
+ * and residues modulo small primes, which differ between implementations
+ * of key generation.
  *
  * @author David Formanek
  */
 class DistributionStats implements Stats {
 
+    private static final double[] PERCENTILES = {0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99};
+    // residues modulo primes from 3 to 23, modulo 2 all primes are odd
+    private static final int RESIDUE_PRIME_COUNT = 9;
+
     private int bitsForInterval = 4;
-    
+    private final int bitsForPercentiles;
+
     private long keyCount = 0;
-    private Map<Integer, Long> intervalCounts = new HashMap<>();
+    private final Histogram intervalCounts;
+    private final Histogram detailedCounts;
+    private final boolean countBytes;
+    private final Histogram secondBytes = new Histogram(256);
+    private final Histogram leastSignificantBytes = new Histogram(256);
+    private final Histogram[] residues = new Histogram[RESIDUE_PRIME_COUNT];
+    private final int[] primeResidues = new int[RESIDUE_PRIME_COUNT];
+    private final LeadingBits leadingBits = new LeadingBits();
 
-    public DistributionStats(int bitsForInterval) {
+    /**
+     * @param bitsForPercentiles top bits of primes counted in a detailed
+     * histogram summarized by percentiles, at least bitsForInterval
+     * @param countBytes whether the second and the least significant bytes
+     * of primes and their residues modulo small primes are counted
+     */
+    public DistributionStats(int bitsForInterval, int bitsForPercentiles, boolean countBytes) {
         this.bitsForInterval = bitsForInterval;
+        this.bitsForPercentiles = Math.max(bitsForInterval, bitsForPercentiles);
+        this.countBytes = countBytes;
+        intervalCounts = new Histogram(1 << bitsForInterval);
+        detailedCounts = new Histogram(1 << this.bitsForPercentiles);
+        for (int i = 1; i < RESIDUE_PRIME_COUNT; i++) {
+            residues[i] = new Histogram(SmallPrimes.get(i));
+        }
     }
 
     @Override
     public void process(Params params) {
-        incrementMap(intervalCounts, topBits(params.getP(), bitsForInterval));
-        incrementMap(intervalCounts, topBits(params.getQ(), bitsForInterval));
+        add(params.getP());
+        add(params.getQ());
         keyCount++;
     }
 
-    private int topBits(BigInteger n, int bits) {
-        return n.shiftRight(n.bitLength() - bits).intValueExact();
+    private void add(BigInteger prime) {
+        leadingBits.set(prime);
+        int detailedBits = leadingBits.getTop(bitsForPercentiles);
+        detailedCounts.add(detailedBits);
+        intervalCounts.add(detailedBits >>> (bitsForPercentiles - bitsForInterval));
+        if (countBytes) {
+            secondBytes.add(leadingBits.getByte(1));
+            leastSignificantBytes.add(prime.intValue() & 0xff);
+            SmallPrimes.residues(prime, primeResidues, RESIDUE_PRIME_COUNT);
+            for (int i = 1; i < RESIDUE_PRIME_COUNT; i++) {
+                residues[i].add(primeResidues[i]);
+            }
+        }
+    }
+
+
+    @Override
+    public Set<KeyField> getRequiredFields() {
+        return EnumSet.of(KeyField.P, KeyField.Q);
+    }
+
+    @Override
+    public void merge(Stats other) {
+        DistributionStats stats = (DistributionStats) other;
+        keyCount += stats.keyCount;
+        intervalCounts.merge(stats.intervalCounts);
+        detailedCounts.merge(stats.detailedCounts);
+        secondBytes.merge(stats.secondBytes);
+        leastSignificantBytes.merge(stats.leastSignificantBytes);
+        for (int i = 1; i < RESIDUE_PRIME_COUNT; i++) {
+            residues[i].merge(stats.residues[i]);
+        }
+    }
+
+    @Override
+    public void save(DataOutput output) throws IOException {
+        output.writeLong(keyCount);
+        intervalCounts.save(output);
+        detailedCounts.save(output);
+        if (countBytes) {
+            secondBytes.save(output);
+            leastSignificantBytes.save(output);
+            for (int i = 1; i < RESIDUE_PRIME_COUNT; i++) {
+                residues[i].save(output);
+            }
+        }
+    }
+
+    @Override
+    public void load(DataInput input) throws IOException {
+        keyCount += input.readLong();
+        intervalCounts.load(input);
+        detailedCounts.load(input);
+        if (countBytes) {
+            secondBytes.load(input);
+            leastSignificantBytes.load(input);
+            for (int i = 1; i < RESIDUE_PRIME_COUNT; i++) {
+                residues[i].load(input);
+            }
+        }
+    }
+
+    @Override
+    public void report(ReportWriter writer) throws IOException {
+        writer.beginSection("distribution");
+        writer.value("primes", 2 * keyCount);
+        writer.counts("top_" + bitsForInterval + "_bits", intervalCounts);
+        if (bitsForPercentiles > bitsForInterval && !detailedCounts.isEmpty()) {
+            writer.beginSection("top_" + bitsForPercentiles + "_bits_percentiles");
+            for (double percentile : PERCENTILES) {
+                writer.value(String.format("%.0f", 100 * percentile),
+                        detailedCounts.getPercentile(percentile));
+            }
+            writer.endSection();
+        }
+        if (countBytes) {
+            writer.counts("second_bytes", secondBytes);
+            writer.counts("least_significant_bytes", leastSignificantBytes);
+            for (int i = 1; i < RESIDUE_PRIME_COUNT; i++) {
+                writer.counts("residues_mod_" + SmallPrimes.get(i), residues[i]);
+            }
+        }
+        writer.endSection();
     }
-    
+
     @Override
     public void print() {
+        if (intervalCounts.isEmpty()) {
+            return;
+        }
         System.out.println("Distribution of top " + bitsForInterval + " bits of primes");
-        printMapChart(intervalCounts, keyCount * 2, 300);
-    }
-
-    private long incrementMap(Map<Integer, Long> map, int value) {
-        long count = map.getOrDefault(value, Long.valueOf(0));
-        count++;
-        map.put(value, count);
-        return count;
-    }
-    
-    private void printMapChart(Map<Integer, Long> map, long size, int symbols) {
-        int maxKey = Collections.max(map.keySet());
-        for (int i = (maxKey + 1) / 2; i <= maxKey; i++) {
-            System.out.print(Integer.toBinaryString(i) + ": ");
-            long value = map.getOrDefault(i, Long.valueOf(0));
-            int width = (int) (value * symbols / size);
-            if (width == 0 && value != 0) {
-                System.out.print(".");
+        int maxKey = intervalCounts.getMax();
+        intervalCounts.printChart((maxKey + 1) / 2, maxKey, keyCount * 2, 300,
+                i -> Integer.toBinaryString(i) + ": ");
+        if (bitsForPercentiles > bitsForInterval) {
+            StringBuilder percentiles = new StringBuilder("Percentiles of top "
+                    + bitsForPercentiles + " bits of primes:");
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                percentiles.append(i == 0 ? " " : ", ").append(String.format("%.0f %%: %d",
+                        100 * PERCENTILES[i], detailedCounts.getPercentile(PERCENTILES[i])));
             }
-            for (int j = 0; j < width; j++) {
-                System.out.print("*");
+            System.out.println(percentiles);
+        }
+        if (countBytes) {
+            printBytes();
+        }
+    }
+
+    private void printBytes() {
+        System.out.println("Distribution of the second byte of primes");
+        secondBytes.printChart(secondBytes.getMin(), secondBytes.getMax(), keyCount * 2, 300,
+                i -> String.format("%4d: ", i));
+        System.out.println("Distribution of the least significant byte of primes");
+        leastSignificantBytes.printChart(leastSignificantBytes.getMin(),
+                leastSignificantBytes.getMax(), keyCount * 2, 300,
+                i -> String.format("%4d: ", i));
+        for (int i = 1; i < RESIDUE_PRIME_COUNT; i++) {
+            StringBuilder line = new StringBuilder("Residues of primes modulo "
+                    + SmallPrimes.get(i) + ":");
+            for (int residue = 0; residue < SmallPrimes.get(i); residue++) {
+                line.append(residue == 0 ? " " : ", ").append(String.format("%d: %.2f %%",
+                        residue, 100 * residues[i].get(residue) / (double) (keyCount * 2)));
             }
-            double percentage = 100 * value / (double) size;
-            System.out.format(" %d (%.4f %%)\n", value, percentage);
+            System.out.println(line);
         }
     }
 }
@@ -0,0 +1,435 @@
+package cz.muni.fi.keycheck;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Detects duplicate primes in datasets larger than memory. Primes are
+ * collected in memory up to the limit, then sorted and spilled to a run file.
+ * At the end the runs are merged and equal consecutive primes are reported
+ * together with the records they come from. If there are too many runs to be
+ * merged at once, groups of runs are first merged into longer runs, which
+ * replace them.
+ * <p>
+ * If the analysis is checkpointed, primes are spilled to runs in the
+ * checkpoint directory and a checkpoint saves only their paths, so the runs
+ * are written once. These runs are kept when merged, the runs of the final
+ * merge are deleted after it.
+ *
+ * @author David Formanek
+ */
+class ExternalUniquenessStats implements Stats {
+
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int MAX_MERGED_RUNS = 64;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final Comparator<byte[]> MAGNITUDE_ORDER = (a, b) -> {
+        if (a.length != b.length) {
+            return Integer.compare(a.length, b.length);
+        }
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] != b[i]) {
+                return Integer.compare(a[i] & 0xff, b[i] & 0xff);
+            }
+        }
+        return 0;
+    };
+
+    private final long memoryLimit;
+    private final Path tempDirectory;
+    private final Path checkpointDirectory;
+    private final Findings findings;
+    private final List<Entry> entries = new ArrayList<>();
+    private final List<Path> runs = new ArrayList<>();
+    private final Set<Path> keptRuns = new HashSet<>();
+    private long usedMemory = 0;
+    private long primeCount = 0;
+    private long duplicitPrimeCount = -1;
+    private int sortedRunCount = 0;
+
+    /**
+     * @param checkpointDirectory directory of runs kept for checkpoints, null
+     * if not checkpointed
+     */
+    public ExternalUniquenessStats(long memoryLimit, Path tempDirectory,
+            Path checkpointDirectory, Findings findings) {
+        this.memoryLimit = memoryLimit;
+        this.tempDirectory = tempDirectory;
+        this.checkpointDirectory = checkpointDirectory;
+        this.findings = findings;
+    }
+
+    @Override
+    public void process(Params params) {
+        add(params.getP(), params);
+        add(params.getQ(), params);
+    }
+
+    private void add(BigInteger prime, Params params) {
+        byte[] magnitude = prime.toByteArray();
+        if (magnitude[0] == 0 && magnitude.length > 1) {
+            magnitude = Arrays.copyOfRange(magnitude, 1, magnitude.length);
+        }
+        entries.add(new Entry(magnitude, params.getSource(), params.getPosition()));
+        usedMemory += ENTRY_OVERHEAD + magnitude.length;
+        primeCount++;
+        duplicitPrimeCount = -1;
+        if (usedMemory > memoryLimit) {
+            spill(checkpointDirectory != null);
+        }
+    }
+
+    /**
+     * @param kept whether the run is kept in the checkpoint directory
+     */
+    private void spill(boolean kept) {
+        try {
+            runs.add(writeEntries(kept));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        entries.clear();
+        usedMemory = 0;
+    }
+
+    /**
+     * @return run of the sorted entries collected in memory
+     */
+    private Path writeEntries(boolean kept) throws IOException {
+        entries.sort((a, b) -> MAGNITUDE_ORDER.compare(a.magnitude, b.magnitude));
+        Path run = createRun(kept);
+        try (RunWriter writer = new RunWriter(run)) {
+            for (Entry entry : entries) {
+                writer.write(entry);
+            }
+        }
+        return run;
+    }
+
+    private Path createRun(boolean kept) throws IOException {
+        if (kept) {
+            Files.createDirectories(checkpointDirectory);
+            Path run = Files.createTempFile(checkpointDirectory, "keycheck-run", ".bin");
+            keptRuns.add(run);
+            return run;
+        }
+        Path run = Files.createTempFile(tempDirectory, "keycheck-run", ".bin");
+        run.toFile().deleteOnExit();
+        return run;
+    }
+
+    @Override
+    public Set<KeyField> getRequiredFields() {
+        return EnumSet.of(KeyField.P, KeyField.Q);
+    }
+
+    @Override
+    public void merge(Stats other) {
+        ExternalUniquenessStats stats = (ExternalUniquenessStats) other;
+        runs.addAll(stats.runs);
+        keptRuns.addAll(stats.keptRuns);
+        // the entries are in memory already, they are spilled when more primes are added
+        for (Entry entry : stats.entries) {
+            entries.add(entry);
+            usedMemory += ENTRY_OVERHEAD + entry.magnitude.length;
+        }
+        primeCount += stats.primeCount;
+        duplicitPrimeCount = -1;
+    }
+
+    /**
+     * Writes the primes collected in memory and the paths of the runs.
+     */
+    @Override
+    public void save(DataOutput output) throws IOException {
+        output.writeLong(entries.size());
+        for (Entry entry : entries) {
+            writeEntry(output, entry);
+        }
+        output.writeInt(runs.size());
+        for (Path run : runs) {
+            if (!keptRuns.contains(run)) {
+                throw new IllegalStateException("Sorted run '" + run + "' is not kept");
+            }
+            Checkpoint.writePath(output, run);
+        }
+        output.writeLong(primeCount);
+    }
+
+    @Override
+    public void load(DataInput input) throws IOException {
+        long entryCount = input.readLong();
+        for (long i = 0; i < entryCount; i++) {
+            Entry entry = readEntry(input);
+            entries.add(entry);
+            usedMemory += ENTRY_OVERHEAD + entry.magnitude.length;
+            if (usedMemory > memoryLimit) {
+                spill(checkpointDirectory != null);
+            }
+        }
+        int runCount = input.readInt();
+        for (int i = 0; i < runCount; i++) {
+            Path run = Checkpoint.readPath(input);
+            if (!Files.exists(run)) {
+                throw new IOException("Sorted run '" + run + "' of the checkpoint not found");
+            }
+            runs.add(run);
+            keptRuns.add(run);
+        }
+        primeCount += input.readLong();
+        duplicitPrimeCount = -1;
+    }
+
+    private static void writeEntry(DataOutput output, Entry entry) throws IOException {
+        output.writeInt(entry.magnitude.length);
+        output.write(entry.magnitude);
+        output.writeUTF(entry.source == null ? "" : entry.source);
+        output.writeLong(entry.position);
+    }
+
+    private static Entry readEntry(DataInput input) throws IOException {
+        byte[] magnitude = new byte[input.readInt()];
+        input.readFully(magnitude);
+        return new Entry(magnitude, input.readUTF(), input.readLong());
+    }
+
+    /**
+     * Merges all runs and reports duplicate primes. The runs and primes of
+     * the stats are left as they are, temporary runs are deleted.
+     *
+     * @return count of primes equal to some previous prime
+     */
+    private long findDuplicates() throws IOException {
+        List<Path> merging = new ArrayList<>(runs);
+        Set<Path> temporaryRuns = new HashSet<>();
+        try {
+            if (!entries.isEmpty()) {
+                Path run = writeEntries(false);
+                temporaryRuns.add(run);
+                merging.add(run);
+            }
+            sortedRunCount = merging.size();
+            while (merging.size() > MAX_MERGED_RUNS) {
+                List<Path> merged = new ArrayList<>();
+                for (int i = 0; i < merging.size(); i += MAX_MERGED_RUNS) {
+                    List<Path> group = merging.subList(i,
+                            Math.min(i + MAX_MERGED_RUNS, merging.size()));
+                    Path run = createRun(false);
+                    temporaryRuns.add(run);
+                    try (RunWriter writer = new RunWriter(run)) {
+                        mergeRuns(group, writer);
+                    }
+                    merged.add(run);
+                    for (Path input : group) {
+                        if (temporaryRuns.remove(input)) {
+                            Files.delete(input);
+                        }
+                    }
+                }
+                merging = merged;
+            }
+            return mergeRuns(merging, null);
+        } finally {
+            for (Path run : temporaryRuns) {
+                Files.deleteIfExists(run);
+            }
+        }
+    }
+
+    private long mergeRuns(List<Path> group, RunWriter writer) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(
+                (a, b) -> MAGNITUDE_ORDER.compare(a.current.magnitude, b.current.magnitude));
+        long duplicates = 0;
+        try {
+            for (Path run : group) {
+                RunReader reader = new RunReader(run);
+                if (reader.advance()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+            List<Entry> equal = new ArrayList<>();
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                Entry entry = reader.current;
+                if (!equal.isEmpty()
+                        && MAGNITUDE_ORDER.compare(equal.get(0).magnitude, entry.magnitude) != 0) {
+                    duplicates += report(equal, writer == null);
+                    equal.clear();
+                }
+                equal.add(entry);
+                if (writer != null) {
+                    writer.write(entry);
+                }
+                if (reader.advance()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+            if (!equal.isEmpty()) {
+                duplicates += report(equal, writer == null);
+            }
+        } finally {
+            for (RunReader reader : queue) {
+                reader.close();
+            }
+        }
+        return duplicates;
+    }
+
+    private int report(List<Entry> equal, boolean print) {
+        if (equal.size() < 2) {
+            return 0;
+        }
+        if (print) {
+            StringBuilder records = new StringBuilder();
+            for (Entry entry : equal) {
+                records.append(records.length() == 0 ? "" : ", ")
+                        .append(entry.source).append('@').append(entry.position);
+            }
+            BigInteger prime = new BigInteger(1, equal.get(0).magnitude);
+            findings.add("duplicate-prime", equal.get(1).source, equal.get(1).position, prime,
+                    "Prime " + prime + " is duplicit! (records " + records + ")");
+        }
+        return equal.size() - 1;
+    }
+
+    @Override
+    public void report(ReportWriter writer) throws IOException {
+        if (duplicitPrimeCount < 0) {
+            duplicitPrimeCount = findDuplicates();
+        }
+        writer.beginSection("external_uniqueness");
+        writer.value("primes", primeCount);
+        writer.value("duplicate_primes", duplicitPrimeCount);
+        writer.value("sorted_runs", sortedRunCount);
+        writer.endSection();
+    }
+
+    @Override
+    public void print() {
+        if (duplicitPrimeCount < 0) {
+            try {
+                duplicitPrimeCount = findDuplicates();
+            } catch (IOException ex) {
+                System.err.println("IO error while merging sorted runs: " + ex.getMessage());
+                return;
+            }
+        }
+        if (duplicitPrimeCount == 0) {
+            System.out.println("All " + primeCount + " primes are unique (checked in "
+                    + sortedRunCount + " sorted runs)");
+        } else {
+            System.out.println(duplicitPrimeCount + " primes are not unique (checked in "
+                    + sortedRunCount + " sorted runs)");
+        }
+    }
+
+    private static class Entry {
+
+        private final byte[] magnitude;
+        private final String source;
+        private final long position;
+
+        Entry(byte[] magnitude, String source, long position) {
+            this.magnitude = magnitude;
+            this.source = source;
+            this.position = position;
+        }
+    }
+
+    /**
+     * Writes entries to a run file, sources are written once and then
+     * referenced by their index.
+     */
+    private static class RunWriter implements AutoCloseable {
+
+        private final DataOutputStream output;
+        private final Map<String, Integer> sources = new HashMap<>();
+
+        RunWriter(Path run) throws IOException {
+            OutputStream stream = Files.newOutputStream(run);
+            output = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE));
+        }
+
+        void write(Entry entry) throws IOException {
+            String source = entry.source == null ? "" : entry.source;
+            Integer sourceIndex = sources.get(source);
+            if (sourceIndex == null) {
+                sourceIndex = sources.size();
+                sources.put(source, sourceIndex);
+                output.writeInt(-1);
+                output.writeUTF(source);
+            }
+            output.writeInt(entry.magnitude.length);
+            output.write(entry.magnitude);
+            output.writeInt(sourceIndex);
+            output.writeLong(entry.position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            output.close();
+        }
+    }
+
+    private static class RunReader implements AutoCloseable {
+
+        private final DataInputStream input;
+        private final List<String> sources = new ArrayList<>();
+        private Entry current;
+
+        RunReader(Path run) throws IOException {
+            InputStream stream = Files.newInputStream(run);
+            input = new DataInputStream(new BufferedInputStream(stream, BUFFER_SIZE));
+        }
+
+        boolean advance() throws IOException {
+            int length;
+            try {
+                length = input.readInt();
+            } catch (EOFException ex) {
+                current = null;
+                return false;
+            }
+            while (length == -1) {
+                sources.add(input.readUTF());
+                length = input.readInt();
+            }
+            byte[] magnitude = new byte[length];
+            input.readFully(magnitude);
+            String source = sources.get(input.readInt());
+            current = new Entry(magnitude, source, input.readLong());
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+}
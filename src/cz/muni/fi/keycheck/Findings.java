@@ -0,0 +1,131 @@
+package cz.muni.fi.keycheck;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sink of findings about individual keys, e.g. invalid keys or duplicate
+ * primes. Findings are printed to the standard output or appended to a file
+ * as lines of JSON objects with the type of the finding, the record of the
+ * key, the value concerned and the message. The sink can be shared by
+ * several threads. Messages for the standard output are collected in a
+ * buffer and printed at once by the thread filling it, so that threads adding
+ * findings do not contend for the output stream for each message.
+ *
+ * @author David Formanek
+ */
+class Findings implements Closeable {
+
+    private static final int RADIX = 10;
+    private static final int PRINTED_LENGTH = 1 << 16;
+
+    private final Writer writer;
+    private final LongAdder count = new LongAdder();
+    private final StringBuilder printed;
+
+    private Findings(Writer writer) {
+        this.writer = writer;
+        printed = writer == null ? new StringBuilder() : null;
+    }
+
+    /**
+     * @return findings printing the messages to the standard output
+     */
+    public static Findings toStandardOutput() {
+        return new Findings(null);
+    }
+
+    /**
+     * @return findings appended to the file, which is created if needed
+     */
+    public static Findings appendTo(Path file) throws IOException {
+        return new Findings(Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+    }
+
+    /**
+     * @param value the number concerned, e.g. the duplicate prime
+     */
+    public void add(String type, Params params, BigInteger value, String message) {
+        add(type, params.getSource(), params.getPosition(), value, message);
+    }
+
+    /**
+     * @param source source of the key or null if unknown
+     * @param position position of the key in the source, -1 if unknown
+     */
+    public void add(String type, String source, long position, BigInteger value,
+            String message) {
+        count.increment();
+        if (writer == null) {
+            synchronized (printed) {
+                printed.append(message).append(System.lineSeparator());
+                if (printed.length() >= PRINTED_LENGTH) {
+                    print();
+                }
+            }
+            return;
+        }
+        String line = "{\"type\": " + JsonReportWriter.quote(type)
+                + ", \"source\": " + (source == null ? "null" : JsonReportWriter.quote(source))
+                + ", \"position\": " + position
+                + ", \"value\": " + (value == null ? "null" : "\"" + value.toString(RADIX) + "\"")
+                + ", \"message\": " + JsonReportWriter.quote(message) + "}\n";
+        try {
+            synchronized (writer) {
+                writer.write(line);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private void print() {
+        System.out.print(printed);
+        System.out.flush();
+        printed.setLength(0);
+    }
+
+    /**
+     * Prints the findings added so far or writes them to the file.
+     */
+    public void flush() throws IOException {
+        if (writer != null) {
+            synchronized (writer) {
+                writer.flush();
+            }
+            return;
+        }
+        synchronized (printed) {
+            print();
+        }
+    }
+
+    /**
+     * @return count of findings added
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    public boolean isFile() {
+        return writer != null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+        } else {
+            flush();
+        }
+    }
+}
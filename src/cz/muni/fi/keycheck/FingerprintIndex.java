@@ -0,0 +1,395 @@
+package cz.muni.fi.keycheck;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Compact set of big numbers detecting duplicates. Only a 128-bit fingerprint
+ * of each number is stored in open addressing tables of primitive longs,
+ * optionally allocated off-heap. The fingerprint consists of the lowest and
+ * the highest 64 bits of the magnitude.
+ * <p>
+ * When a directory for confirmation is given, full values are appended to
+ * files in it and a fingerprint match is confirmed by reading the stored
+ * value back, otherwise a fingerprint match is reported as unconfirmed.
+ * The index is divided into independently locked segments, so it can be
+ * shared by several threads.
+ *
+ * @author David Formanek
+ */
+class FingerprintIndex {
+
+    private static final int SEGMENT_COUNT = 64;
+    private static final int MIN_SEGMENT_CAPACITY = 1 << 10;
+    private static final int MAX_SEGMENT_CAPACITY = 1 << 26;
+    private static final double MAX_LOAD = 0.7;
+
+    /**
+     * Result of adding a value.
+     */
+    enum Match {
+        /** the value was not present and has been added */
+        NONE,
+        /** the same value is already present */
+        CONFIRMED,
+        /** a value with the same fingerprint is present, but could not be compared */
+        UNCONFIRMED
+    }
+
+    /**
+     * Numbers of values already present when adding many values at once.
+     */
+    static class Matches {
+
+        private long confirmed = 0;
+        private long unconfirmed = 0;
+
+        private void add(Match match) {
+            if (match == Match.CONFIRMED) {
+                confirmed++;
+            } else if (match == Match.UNCONFIRMED) {
+                unconfirmed++;
+            }
+        }
+
+        public long getConfirmed() {
+            return confirmed;
+        }
+
+        public long getUnconfirmed() {
+            return unconfirmed;
+        }
+    }
+
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+    private final boolean offHeap;
+    private final Path confirmationDirectory;
+
+    public FingerprintIndex(long expectedSize, boolean offHeap, Path confirmationDirectory) {
+        this.offHeap = offHeap;
+        this.confirmationDirectory = confirmationDirectory;
+        int capacity = MIN_SEGMENT_CAPACITY;
+        while (capacity < MAX_SEGMENT_CAPACITY
+                && capacity * MAX_LOAD * SEGMENT_COUNT < expectedSize) {
+            capacity *= 2;
+        }
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(capacity);
+        }
+    }
+
+    /**
+     * @return whether the value is already present
+     */
+    public Match add(BigInteger value) {
+        long low = value.longValue();
+        long high = high(value);
+        if (low == 0 && high == 0) {
+            high = 1;
+        }
+        long hash = mix(low ^ Long.rotateLeft(high, 32));
+        Segment segment = segments[(int) (hash >>> 58) & (SEGMENT_COUNT - 1)];
+        synchronized (segment) {
+            return segment.add(low, high, hash, value);
+        }
+    }
+
+    /**
+     * Adds all values of other index.
+     *
+     * @return numbers of values already present
+     */
+    public Matches addAll(FingerprintIndex other) {
+        Matches duplicates = new Matches();
+        for (Segment segment : other.segments) {
+            synchronized (segment) {
+                for (int slot = 0; slot < segment.capacity; slot++) {
+                    long low = segment.table.get(segment.width * slot);
+                    long high = segment.table.get(segment.width * slot + 1);
+                    if (low == 0 && high == 0) {
+                        continue;
+                    }
+                    BigInteger value = null;
+                    if (confirmationDirectory != null && other.confirmationDirectory != null) {
+                        value = segment.readValue(segment.table.get(segment.width * slot + 2));
+                    }
+                    long hash = mix(low ^ Long.rotateLeft(high, 32));
+                    Segment target = segments[(int) (hash >>> 58) & (SEGMENT_COUNT - 1)];
+                    synchronized (target) {
+                        duplicates.add(target.add(low, high, hash, value));
+                    }
+                }
+            }
+        }
+        return duplicates;
+    }
+
+    /**
+     * Writes the fingerprints of all values, the full values are not saved.
+     * An index shared by several stats is written only once per checkpoint.
+     */
+    public void save(DataOutput output) throws IOException {
+        if (!Checkpoint.writeShared(output, this)) {
+            return;
+        }
+        output.writeLong(size());
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                for (int slot = 0; slot < segment.capacity; slot++) {
+                    long low = segment.table.get(segment.width * slot);
+                    long high = segment.table.get(segment.width * slot + 1);
+                    if (low != 0 || high != 0) {
+                        output.writeLong(low);
+                        output.writeLong(high);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds fingerprints written by save(), a later match with them is
+     * unconfirmed.
+     *
+     * @return numbers of values already present
+     */
+    public Matches load(DataInput input) throws IOException {
+        Matches duplicates = new Matches();
+        if (!Checkpoint.readShared(input)) {
+            return duplicates;
+        }
+        long count = input.readLong();
+        for (long i = 0; i < count; i++) {
+            long low = input.readLong();
+            long high = input.readLong();
+            long hash = mix(low ^ Long.rotateLeft(high, 32));
+            Segment segment = segments[(int) (hash >>> 58) & (SEGMENT_COUNT - 1)];
+            synchronized (segment) {
+                duplicates.add(segment.add(low, high, hash, null));
+            }
+        }
+        return duplicates;
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return 64-bit hash of the fingerprint of the value, e.g. for sketches
+     */
+    static long hash(BigInteger value) {
+        return mix(value.longValue() ^ Long.rotateLeft(high(value), 32));
+    }
+
+    /**
+     * @return the highest 64 bits of the magnitude, all bits of short values
+     */
+    private static long high(BigInteger value) {
+        int shift = value.bitLength() - Long.SIZE;
+        return shift > 0 ? value.shiftRight(shift).longValue() : value.longValue();
+    }
+
+    private static long mix(long x) {
+        x = (x ^ (x >>> 33)) * 0xff51afd7ed558ccdL;
+        x = (x ^ (x >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return x ^ (x >>> 33);
+    }
+
+    private interface LongStore {
+        long get(int index);
+        void set(int index, long value);
+    }
+
+    private static class HeapStore implements LongStore {
+
+        private final long[] values;
+
+        HeapStore(int size) {
+            values = new long[size];
+        }
+
+        @Override
+        public long get(int index) {
+            return values[index];
+        }
+
+        @Override
+        public void set(int index, long value) {
+            values[index] = value;
+        }
+    }
+
+    private static class DirectStore implements LongStore {
+
+        private final LongBuffer values;
+
+        DirectStore(int size) {
+            values = ByteBuffer.allocateDirect(8 * size).asLongBuffer();
+        }
+
+        @Override
+        public long get(int index) {
+            return values.get(index);
+        }
+
+        @Override
+        public void set(int index, long value) {
+            values.put(index, value);
+        }
+    }
+
+    private class Segment {
+
+        private final int width = confirmationDirectory == null ? 2 : 3;
+        private LongStore table;
+        private int capacity;
+        private int size = 0;
+        private FileChannel values;
+        private ByteBuffer valueBuffer;
+        private long valuesLength = 0;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            table = createStore(capacity);
+        }
+
+        private LongStore createStore(int capacity) {
+            return offHeap ? new DirectStore(width * capacity) : new HeapStore(width * capacity);
+        }
+
+        Match add(long low, long high, long hash, BigInteger value) {
+            int mask = capacity - 1;
+            for (int slot = (int) hash & mask;; slot = (slot + 1) & mask) {
+                long slotLow = table.get(width * slot);
+                long slotHigh = table.get(width * slot + 1);
+                if (slotLow == 0 && slotHigh == 0) {
+                    table.set(width * slot, low);
+                    table.set(width * slot + 1, high);
+                    if (width == 3) {
+                        table.set(width * slot + 2, value == null ? -1 : writeValue(value));
+                    }
+                    size++;
+                    if (size > capacity * MAX_LOAD) {
+                        grow();
+                    }
+                    return Match.NONE;
+                }
+                if (slotLow == low && slotHigh == high) {
+                    Match match = compare(slot, value);
+                    if (match != Match.NONE) {
+                        return match;
+                    }
+                }
+            }
+        }
+
+        private Match compare(int slot, BigInteger value) {
+            if (width == 2 || value == null) {
+                return Match.UNCONFIRMED;
+            }
+            long offset = table.get(width * slot + 2);
+            if (offset < 0) {
+                return Match.UNCONFIRMED;
+            }
+            return value.equals(readValue(offset)) ? Match.CONFIRMED : Match.NONE;
+        }
+
+        private void grow() {
+            if (capacity == MAX_SEGMENT_CAPACITY) {
+                throw new IllegalStateException("Fingerprint index is full");
+            }
+            LongStore oldTable = table;
+            int oldCapacity = capacity;
+            capacity *= 2;
+            table = createStore(capacity);
+            int mask = capacity - 1;
+            for (int i = 0; i < oldCapacity; i++) {
+                long low = oldTable.get(width * i);
+                long high = oldTable.get(width * i + 1);
+                if (low == 0 && high == 0) {
+                    continue;
+                }
+                int slot = (int) mix(low ^ Long.rotateLeft(high, 32)) & mask;
+                while (table.get(width * slot) != 0 || table.get(width * slot + 1) != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                for (int j = 0; j < width; j++) {
+                    table.set(width * slot + j, oldTable.get(width * i + j));
+                }
+            }
+        }
+
+        private long writeValue(BigInteger value) {
+            try {
+                if (values == null) {
+                    Path file = Files.createTempFile(confirmationDirectory, "primes", ".bin");
+                    file.toFile().deleteOnExit();
+                    values = FileChannel.open(file, StandardOpenOption.READ,
+                            StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+                    valueBuffer = ByteBuffer.allocateDirect(1 << 16);
+                }
+                byte[] bytes = value.toByteArray();
+                if (valueBuffer.remaining() < 4 + bytes.length) {
+                    flushValues();
+                    if (valueBuffer.remaining() < 4 + bytes.length) {
+                        valueBuffer = ByteBuffer.allocateDirect(4 + bytes.length);
+                    }
+                }
+                long offset = valuesLength + valueBuffer.position();
+                valueBuffer.putInt(bytes.length);
+                valueBuffer.put(bytes);
+                return offset;
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        private BigInteger readValue(long offset) {
+            if (offset < 0) {
+                return null;
+            }
+            try {
+                flushValues();
+                ByteBuffer length = ByteBuffer.allocate(4);
+                readFully(length, offset);
+                ByteBuffer bytes = ByteBuffer.allocate(length.getInt(0));
+                readFully(bytes, offset + 4);
+                return new BigInteger(bytes.array());
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        private void readFully(ByteBuffer buffer, long offset) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (values.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of stored values");
+                }
+            }
+        }
+
+        private void flushValues() throws IOException {
+            valueBuffer.flip();
+            while (valueBuffer.hasRemaining()) {
+                valuesLength += values.write(valueBuffer, valuesLength);
+            }
+            valueBuffer.clear();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package cz.muni.fi.keycheck;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Accumulates keys of each group of sources, e.g. one device model, into
+ * separate stats. Results of all groups are the merged results of the groups
+ * and of the shared stats, which process keys of all groups and are not
+ * worth computing per group, e.g. batch GCD. Structures referenced by the
+ * stats, like the prime index, are shared by all groups, so a duplicate
+ * prime is counted in the group where it is found second.
+ *
+ * @author David Formanek
+ */
+class GroupedStats implements Stats {
+
+    private final Supplier<Stats> factory;
+    private final Stats shared;
+    private final Function<String, String> grouping;
+    private final Map<String, Stats> groups = new LinkedHashMap<>();
+    private final Set<KeyField> requiredFields = EnumSet.noneOf(KeyField.class);
+    private String lastSource;
+    private Stats lastGroup;
+
+    /**
+     * @param factory creates stats of a group
+     * @param shared stats of keys of all groups
+     * @param grouping maps the source of a key to the name of its group
+     */
+    public GroupedStats(Supplier<Stats> factory, Stats shared,
+            Function<String, String> grouping) {
+        this.factory = factory;
+        this.shared = shared;
+        this.grouping = grouping;
+        requiredFields.addAll(factory.get().getRequiredFields());
+        requiredFields.addAll(shared.getRequiredFields());
+    }
+
+    /**
+     * Combines stats of the same groups, so that results of each group are
+     * printed together, e.g. stats of workers and stats dependent on key
+     * order. The groups are not copied.
+     */
+    public static GroupedStats join(GroupedStats first, GroupedStats second) {
+        return join(first, second, GroupedStats::combine);
+    }
+
+    /**
+     * @param groupJoin combines stats of a group from the first and the second
+     * stats
+     */
+    public static GroupedStats join(GroupedStats first, GroupedStats second,
+            BinaryOperator<Stats> groupJoin) {
+        GroupedStats joined = new GroupedStats(
+                () -> groupJoin.apply(first.factory.get(), second.factory.get()),
+                combine(first.shared, second.shared), first.grouping);
+        for (Map.Entry<String, Stats> entry : first.groups.entrySet()) {
+            Stats other = second.groups.get(entry.getKey());
+            joined.groups.put(entry.getKey(), groupJoin.apply(entry.getValue(),
+                    other == null ? second.factory.get() : other));
+        }
+        for (Map.Entry<String, Stats> entry : second.groups.entrySet()) {
+            if (!joined.groups.containsKey(entry.getKey())) {
+                joined.groups.put(entry.getKey(),
+                        groupJoin.apply(first.factory.get(), entry.getValue()));
+            }
+        }
+        return joined;
+    }
+
+    private static Stats combine(Stats first, Stats second) {
+        StatsContainer container = new StatsContainer();
+        container.add(first);
+        container.add(second);
+        return container;
+    }
+
+    @Override
+    public void process(Params params) {
+        // keys of one source come in sequences
+        String source = params.getSource();
+        if (source != lastSource || lastGroup == null) {
+            lastGroup = getGroup(grouping.apply(source));
+            lastSource = source;
+        }
+        lastGroup.process(params);
+        shared.process(params);
+    }
+
+    private Stats getGroup(String name) {
+        return groups.computeIfAbsent(name, group -> factory.get());
+    }
+
+    /**
+     * @return merged results of all groups
+     */
+    private Stats getAll() {
+        Stats all = factory.get();
+        for (Stats group : groups.values()) {
+            all.merge(group);
+        }
+        return all;
+    }
+
+    @Override
+    public void merge(Stats other) {
+        GroupedStats stats = (GroupedStats) other;
+        for (Map.Entry<String, Stats> entry : stats.groups.entrySet()) {
+            getGroup(entry.getKey()).merge(entry.getValue());
+        }
+        shared.merge(stats.shared);
+    }
+
+    @Override
+    public void flush() {
+        for (Stats group : groups.values()) {
+            group.flush();
+        }
+        shared.flush();
+    }
+
+    @Override
+    public Set<KeyField> getRequiredFields() {
+        return EnumSet.copyOf(requiredFields);
+    }
+
+    @Override
+    public void save(DataOutput output) throws IOException {
+        shared.save(output);
+        output.writeInt(groups.size());
+        for (Map.Entry<String, Stats> entry : groups.entrySet()) {
+            output.writeUTF(entry.getKey());
+            entry.getValue().save(output);
+        }
+    }
+
+    @Override
+    public void load(DataInput input) throws IOException {
+        shared.load(input);
+        int groupCount = input.readInt();
+        for (int i = 0; i < groupCount; i++) {
+            getGroup(input.readUTF()).load(input);
+        }
+    }
+
+    /**
+     * Writes results of all groups as if not grouped, followed by a section
+     * for each group.
+     */
+    @Override
+    public void report(ReportWriter writer) throws IOException {
+        writer.value("groups", groups.size());
+        getAll().report(writer);
+        shared.report(writer);
+        writer.beginSection("by_group");
+        for (Map.Entry<String, Stats> entry : groups.entrySet()) {
+            writer.beginSection(entry.getKey());
+            entry.getValue().report(writer);
+            writer.endSection();
+        }
+        writer.endSection();
+    }
+
+    @Override
+    public void print() {
+        System.out.println("Results of all " + groups.size() + " groups:");
+        getAll().print();
+        shared.print();
+        for (Map.Entry<String, Stats> entry : groups.entrySet()) {
+            System.out.println();
+            System.out.println("Results of group '" + entry.getKey() + "':");
+            entry.getValue().print();
+        }
+    }
+}
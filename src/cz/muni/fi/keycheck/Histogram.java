@@ -0,0 +1,271 @@
+package cz.muni.fi.keycheck;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.function.IntFunction;
+
+/**
+ * Counts of int values without boxing. Values in [0, denseSize) are counted
+ * in an array, other values in an open addressing table of primitive keys
+ * and counts, so a histogram of a small range costs one array increment and
+ * a histogram of sparse values grows only with the number of distinct values.
+ *
+ * @author David Formanek
+ */
+class Histogram {
+
+    private static final int MIN_SPARSE_CAPACITY = 16;
+
+    private final long[] dense;
+    private int[] sparseKeys;
+    private long[] sparseCounts;
+    private int sparseSize = 0;
+    private long total = 0;
+
+    /**
+     * Creates a histogram counting all values in the sparse table.
+     */
+    public Histogram() {
+        this(0);
+    }
+
+    /**
+     * @param denseSize values under this bound are counted in an array
+     */
+    public Histogram(int denseSize) {
+        dense = new long[denseSize];
+    }
+
+    public void add(int value) {
+        if (value >= 0 && value < dense.length) {
+            dense[value]++;
+            total++;
+        } else {
+            add(value, 1);
+        }
+    }
+
+    public void add(int value, long count) {
+        if (count == 0) {
+            return;
+        }
+        total += count;
+        if (value >= 0 && value < dense.length) {
+            dense[value] += count;
+            return;
+        }
+        if (sparseKeys == null) {
+            sparseKeys = new int[MIN_SPARSE_CAPACITY];
+            sparseCounts = new long[MIN_SPARSE_CAPACITY];
+        }
+        int slot = findSlot(sparseKeys, sparseCounts, value);
+        if (sparseCounts[slot] == 0) {
+            sparseKeys[slot] = value;
+            sparseSize++;
+            if (2 * sparseSize > sparseKeys.length) {
+                sparseCounts[slot] = count;
+                growSparse();
+                return;
+            }
+        }
+        sparseCounts[slot] += count;
+    }
+
+    private static int findSlot(int[] keys, long[] counts, int value) {
+        int mask = keys.length - 1;
+        int hash = value * 0x9e3779b9;
+        int slot = (hash ^ hash >>> 16) & mask;
+        while (counts[slot] != 0 && keys[slot] != value) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void growSparse() {
+        int[] oldKeys = sparseKeys;
+        long[] oldCounts = sparseCounts;
+        sparseKeys = new int[2 * oldKeys.length];
+        sparseCounts = new long[2 * oldKeys.length];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldCounts[i] != 0) {
+                int slot = findSlot(sparseKeys, sparseCounts, oldKeys[i]);
+                sparseKeys[slot] = oldKeys[i];
+                sparseCounts[slot] = oldCounts[i];
+            }
+        }
+    }
+
+    public long get(int value) {
+        if (value >= 0 && value < dense.length) {
+            return dense[value];
+        }
+        if (sparseKeys == null) {
+            return 0;
+        }
+        return sparseCounts[findSlot(sparseKeys, sparseCounts, value)];
+    }
+
+    /**
+     * @return values with a non-zero count in increasing order
+     */
+    public int[] getValues() {
+        int size = sparseSize;
+        for (long count : dense) {
+            if (count != 0) {
+                size++;
+            }
+        }
+        int[] values = new int[size];
+        size = 0;
+        for (int i = 0; i < dense.length; i++) {
+            if (dense[i] != 0) {
+                values[size++] = i;
+            }
+        }
+        if (sparseKeys != null) {
+            for (int i = 0; i < sparseKeys.length; i++) {
+                if (sparseCounts[i] != 0) {
+                    values[size++] = sparseKeys[i];
+                }
+            }
+        }
+        Arrays.sort(values);
+        return values;
+    }
+
+    /**
+     * @return sum of all counts
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    public boolean isEmpty() {
+        return total == 0;
+    }
+
+    /**
+     * @return the smallest value counted
+     */
+    public int getMin() {
+        return getBound(true);
+    }
+
+    /**
+     * @return the largest value counted
+     */
+    public int getMax() {
+        return getBound(false);
+    }
+
+    private int getBound(boolean min) {
+        if (total == 0) {
+            throw new NoSuchElementException("Histogram is empty");
+        }
+        boolean found = false;
+        int bound = 0;
+        for (int i = 0; i < dense.length; i++) {
+            int value = min ? i : dense.length - 1 - i;
+            if (dense[value] != 0) {
+                bound = value;
+                found = true;
+                break;
+            }
+        }
+        if (sparseKeys != null) {
+            for (int i = 0; i < sparseKeys.length; i++) {
+                if (sparseCounts[i] != 0 && (!found || (sparseKeys[i] < bound) == min)) {
+                    bound = sparseKeys[i];
+                    found = true;
+                }
+            }
+        }
+        return bound;
+    }
+
+    /**
+     * @param fraction fraction of counts in [0, 1]
+     * @return the smallest value such that the given fraction of counts is
+     * not bigger than it
+     */
+    public int getPercentile(double fraction) {
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long cumulative = 0;
+        for (int value = getMin(), max = getMax();; value++) {
+            cumulative += get(value);
+            if (cumulative >= rank || value == max) {
+                return value;
+            }
+        }
+    }
+
+    public double getMean() {
+        double sum = 0;
+        for (int i = 0; i < dense.length; i++) {
+            sum += (double) i * dense[i];
+        }
+        if (sparseKeys != null) {
+            for (int i = 0; i < sparseKeys.length; i++) {
+                sum += (double) sparseKeys[i] * sparseCounts[i];
+            }
+        }
+        return sum / total;
+    }
+
+    /**
+     * Adds counts of other histogram, which is not modified.
+     */
+    public void merge(Histogram other) {
+        for (int i = 0; i < other.dense.length; i++) {
+            add(i, other.dense[i]);
+        }
+        if (other.sparseKeys != null) {
+            for (int i = 0; i < other.sparseKeys.length; i++) {
+                add(other.sparseKeys[i], other.sparseCounts[i]);
+            }
+        }
+    }
+
+    public void save(DataOutput output) throws IOException {
+        int[] values = getValues();
+        output.writeInt(values.length);
+        for (int value : values) {
+            output.writeInt(value);
+            output.writeLong(get(value));
+        }
+    }
+
+    /**
+     * Adds the counts written by save().
+     */
+    public void load(DataInput input) throws IOException {
+        int size = input.readInt();
+        for (int i = 0; i < size; i++) {
+            add(input.readInt(), input.readLong());
+        }
+    }
+
+    /**
+     * Prints a line with a bar for each value in [from, to].
+     *
+     * @param size count corresponding to the full width of symbols
+     */
+    public void printChart(int from, int to, long size, int symbols, IntFunction<String> label) {
+        for (int i = from; i <= to; i++) {
+            System.out.print(label.apply(i));
+            long value = get(i);
+            int width = (int) (value * symbols / size);
+            if (width == 0 && value != 0) {
+                System.out.print(".");
+            }
+            for (int j = 0; j < width; j++) {
+                System.out.print("*");
+            }
+            double percentage = 100 * value / (double) size;
+            System.out.format(" %d (%.4f %%)\n", value, percentage);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package cz.muni.fi.keycheck;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Estimates the count of distinct values from their 64-bit hashes in fixed
+ * memory of 2^precision bytes, with relative standard error about
+ * 1.04 / sqrt(2^precision), e.g. 0.8 % for precision 14. Sketches of the
+ * same precision are merged without loss.
+ *
+ * @author David Formanek
+ */
+class HyperLogLog {
+
+    private final int precision;
+    private final byte[] registers;
+
+    /**
+     * @param precision count of bits of the hash selecting a register, 4 to 18
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 18) {
+            throw new IllegalArgumentException("Precision " + precision + " not in [4, 18]");
+        }
+        this.precision = precision;
+        registers = new byte[1 << precision];
+    }
+
+    public void add(long hash) {
+        int index = (int) (hash >>> (Long.SIZE - precision));
+        // the appended bit bounds the rank if the remaining bits are zero
+        byte rank = (byte) (Long.numberOfLeadingZeros(hash << precision
+                | 1L << (precision - 1)) + 1);
+        if (registers[index] < rank) {
+            registers[index] = rank;
+        }
+    }
+
+    /**
+     * @return estimated count of distinct values added
+     */
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeroCount = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeroCount++;
+            }
+        }
+        double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709
+                : 0.7213 / (1 + 1.079 / m);
+        double estimate = alpha * m * m / sum;
+        if (estimate <= 2.5 * m && zeroCount > 0) {
+            // linear counting is more precise for small counts
+            estimate = m * Math.log((double) m / zeroCount);
+        }
+        return Math.round(estimate);
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * @return relative standard error of the estimate
+     */
+    public double getError() {
+        return 1.04 / Math.sqrt(registers.length);
+    }
+
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("Sketches of precision " + precision
+                    + " and " + other.precision + " cannot be merged");
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (registers[i] < other.registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    public void save(DataOutput output) throws IOException {
+        output.writeByte(precision);
+        output.write(registers);
+    }
+
+    /**
+     * Merges a sketch written by save().
+     */
+    public void load(DataInput input) throws IOException {
+        HyperLogLog other = new HyperLogLog(input.readByte());
+        input.readFully(other.registers);
+        merge(other);
+    }
+}
@@ -0,0 +1,149 @@
+package cz.muni.fi.keycheck;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+
+/**
+ * Writes the report as one JSON object, sections are nested objects and
+ * counts are objects mapping the counted values to their counts.
+ *
+ * @author David Formanek
+ */
+class JsonReportWriter implements ReportWriter {
+
+    private final Writer writer;
+    private final Deque<Boolean> isEmpty = new ArrayDeque<>();
+
+    public JsonReportWriter(Writer writer) throws IOException {
+        this.writer = writer;
+        writer.write('{');
+        isEmpty.push(true);
+    }
+
+    @Override
+    public void beginSection(String name) throws IOException {
+        writeName(name);
+        writer.write('{');
+        isEmpty.push(true);
+    }
+
+    @Override
+    public void endSection() throws IOException {
+        if (isEmpty.size() == 1) {
+            throw new IllegalStateException("No section to end");
+        }
+        end();
+    }
+
+    private void end() throws IOException {
+        boolean empty = isEmpty.pop();
+        if (!empty) {
+            writer.write('\n');
+            indent();
+        }
+        writer.write('}');
+    }
+
+    @Override
+    public void value(String name, long value) throws IOException {
+        writeName(name);
+        writer.write(Long.toString(value));
+    }
+
+    @Override
+    public void value(String name, double value) throws IOException {
+        writeName(name);
+        writer.write(Double.isFinite(value) ? Double.toString(value) : "null");
+    }
+
+    @Override
+    public void value(String name, boolean value) throws IOException {
+        writeName(name);
+        writer.write(Boolean.toString(value));
+    }
+
+    @Override
+    public void value(String name, String value) throws IOException {
+        writeName(name);
+        writer.write(value == null ? "null" : quote(value));
+    }
+
+    @Override
+    public void counts(String name, Histogram histogram) throws IOException {
+        writeName(name);
+        writer.write('{');
+        int[] values = histogram.getValues();
+        for (int i = 0; i < values.length; i++) {
+            writer.write(i == 0 ? "\"" : ", \"");
+            writer.write(Integer.toString(values[i]));
+            writer.write("\": ");
+            writer.write(Long.toString(histogram.get(values[i])));
+        }
+        writer.write('}');
+    }
+
+    @Override
+    public void counts(String name, Map<String, Long> counts) throws IOException {
+        writeName(name);
+        writer.write('{');
+        boolean first = true;
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            writer.write(first ? "" : ", ");
+            writer.write(quote(entry.getKey()));
+            writer.write(": ");
+            writer.write(Long.toString(entry.getValue()));
+            first = false;
+        }
+        writer.write('}');
+    }
+
+    private void writeName(String name) throws IOException {
+        writer.write(isEmpty.pop() ? "\n" : ",\n");
+        isEmpty.push(false);
+        indent();
+        writer.write(quote(name));
+        writer.write(": ");
+    }
+
+    private void indent() throws IOException {
+        for (int i = 1; i < isEmpty.size(); i++) {
+            writer.write("  ");
+        }
+    }
+
+    /**
+     * @return the string as a JSON string literal
+     */
+    static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * Ends the report and closes the underlying writer.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            while (!isEmpty.isEmpty()) {
+                end();
+            }
+            writer.write('\n');
+        } finally {
+            writer.close();
+        }
+    }
+}
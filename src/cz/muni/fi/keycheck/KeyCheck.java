@@ -1,203 +1,803 @@
 package cz.muni.fi.keycheck;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+import javax.management.JMException;
 
 /**
+ * Analyses keys in the given files or generated keys, see Config for the
+ * syntax of options. Main options:
+ * <ul>
+ * <li>stats - comma separated names of stats, printed in this order, by
+ * default basic, prime-strength, randomness and distribution, skip - names of
+ * stats left out
+ * <li>public-keys-only, threads, batch-size, mapped-input, mapped-readers
+ * <li>file-readers - count of files read at once, each on its own thread
+ * <li>group-by-source - results per group of files, given as group=file
+ * <li>generate, generate.count, generate.bits, generate.exponent,
+ * generate.strategy, generate.seed, generate.file - analyse generated keys
+ * <li>prime-certainty, smooth-bound, bits-for-interval, largest-factor and
+ * options of stats prefixed by their name, e.g. basic.full-test-interval,
+ * distribution.bytes counting bytes and residues modulo small primes,
+ * sketch.filter-size in MB and sketch.filter-file kept between runs
+ * <li>import - converts the files to a columnar key file instead of the
+ * analysis, import.block-size, import.compress
+ * <li>checkpoint.file, checkpoint.interval, findings.file, report.file,
+ * metrics, metrics.port, metrics.sample-interval, status-interval in seconds
+ * </ul>
  *
  * @author David Formanek
  */
 public class KeyCheck {
 
-    private static final boolean CHECK_VALIDITY = true;
-    private static final boolean CHECK_PRIME_DIFFERENCE = true;
-    private static final boolean CHECK_PRIME_UNIQUENESS = true;
-    private static final boolean CHECK_PRiVATE_EXPONENT = true;
-    private static final boolean CHECK_PRIME_STRENGTH = true;
-    private static final boolean CHECK_ORDER_RANDOMNESS = true;
-    private static final boolean CHECK_DISTRIBUTION = true;
-
-    private static final boolean GENERATE_AND_TEST = true;
-    private static final int GENERATED_PRIME_BITLENGTH = 512;
-    private static final long GENERATED_KEY_COUNT = 100000;
-    private static final BigInteger EXPONENT_FOR_GENERATED = new BigInteger("65537");
-
-    private static final int PRIME_CERTAINITY = 40;
-    private static final int SMOOTH_BOUND = 10000;
-    private static final int BITS_FOR_INTERVAL = 5;
-    private static final long STATUS_MESSAGE_AFTER = 20000000000L;
-
-    private static long keyCount = 0;
+    static final long DEFAULT_GENERATED_KEY_COUNT = 100000;
+    private static final List<String> DEFAULT_STATS = Arrays.asList("basic", "prime-strength",
+            "randomness", "distribution");
+
+    private static final AtomicLong keyCount = new AtomicLong();
     private static long startTime;
-    private static long lastStatusMessageTime;
+    private static volatile long lastStatusMessageTime;
+    private static long statusMessageAfter;
+    private static int threads;
+    private static boolean mappedInput;
+    private static int mappedReaders;
+    private static int fileReaders;
+    private static String checkpointFile;
+    private static long checkpointInterval;
+    private static KeyGenerator generator;
+    private static long generatedKeyCount;
+    private static long generatedKeySeed;
+    private static String generatedKeyFile;
+    private static String findingsFile;
+    private static String reportFile;
+    private static Checkpoint checkpoint;
+    private static Metrics metrics;
+    private static int metricsSampleInterval;
+    private static Findings findings;
+    private static StatsContext context;
+    private static long checkpointKeyCount;
+    private static final Map<String, String> sourceGroups = new HashMap<>();
 
     /**
      * @param args the command line arguments
      */
     public static void main(String[] args) {
-        if (args.length == 0) {
-            System.out.println("specify file name(s)");
+        Config config;
+        try {
+            config = Config.parse(args);
+        } catch (IOException ex) {
+            System.err.println("IO error while reading configuration: " + ex.getMessage());
+            return;
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            return;
+        }
+        boolean generate = config.getBoolean("generate", false);
+        if (config.getFiles().isEmpty() && !generate) {
+            System.out.println("specify file name(s), optionally prefixed by group name and '=',"
+                    + " or --generate, options are given as --name=value or by --config=file");
+            return;
+        }
+        List<String> filenames = new ArrayList<>();
+        for (String arg : config.getFiles()) {
+            filenames.add(addSource(arg));
+        }
+        if (config.getString("import", null) != null) {
+            importKeys(filenames, config);
+            return;
+        }
+        try {
+            analyse(filenames, config);
+        } finally {
+            // the metrics server thread would keep the JVM running after an early exit
+            if (metrics != null) {
+                metrics.stop();
+            }
+        }
+    }
+
+    private static void analyse(List<String> filenames, Config config) {
+        ParallelAnalysis stats;
+        try {
+            stats = init(config);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            return;
+        }
+        try {
+            restoreCheckpoint(stats);
+        } catch (IOException ex) {
+            System.err.println("IO error while restoring checkpoint: " + ex.getMessage());
             return;
         }
-        Stats stats = init();
-        if (GENERATE_AND_TEST) {
-            testGenerated(GENERATED_KEY_COUNT, GENERATED_PRIME_BITLENGTH, stats);
+        if (generator != null) {
+            testGenerated(stats);
+        }
+        if (fileReaders > 1 && filenames.size() > 1) {
+            try {
+                loadConcurrently(filenames, stats);
+            } catch (IOException ex) {
+                System.err.println("IO error: " + ex.getMessage());
+            }
         } else {
-            for (String filename : args) {
+            for (String filename : filenames) {
                 try {
-                    load(filename, stats);
+                    if (mappedInput) {
+                        loadMapped(filename, stats);
+                    } else {
+                        load(filename, stats);
+                    }
                 } catch (IOException ex) {
                     System.err.println("IO error: " + ex.getMessage());
+                    if (metrics != null) {
+                        metrics.addInputError();
+                    }
                 }
             }
         }
         printStats(stats);
+        if (reportFile != null) {
+            writeReport(stats);
+        }
+        closeFindings();
+        try {
+            context.close();
+        } catch (IOException ex) {
+            System.err.println("IO error while saving filter of primes: " + ex.getMessage());
+        }
     }
 
-    private static void testGenerated(long count, int bits, Stats stats) {
-        final SecureRandom rnd = new SecureRandom();
-        for (int i = 0; i < count; i++) {
-            BigInteger p = new BigInteger(bits, 40, rnd);
-            BigInteger q = new BigInteger(bits, 40, rnd);
-            BigInteger modulus = p.multiply(q);
-            BigInteger phi = modulus.subtract(p).subtract(q).add(BigInteger.ONE);
-            if (!phi.gcd(EXPONENT_FOR_GENERATED).equals(BigInteger.ONE)) {
-                i--;
-                continue;
-            }
-            Params params = new Params();
-            params.setP(p);
-            params.setQ(q);
-            params.setExponent(EXPONENT_FOR_GENERATED);
-            params.setModulus(modulus);
-            stats.process(params);
-            showProgress();
+    private static void testGenerated(Stats stats) {
+        System.out.println("Generating keys with seed " + generatedKeySeed);
+        if (generatedKeyFile == null) {
+            generator.generate(generatedKeyCount, params -> {
+                stats.process(params);
+                showProgress();
+            });
+            return;
+        }
+        try (KeyWriter writer = new KeyWriter(new FileOutputStream(generatedKeyFile))) {
+            generator.generate(generatedKeyCount, params -> {
+                try {
+                    writer.write(params);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                stats.process(params);
+                showProgress();
+            });
+        } catch (IOException | UncheckedIOException ex) {
+            System.err.println("IO error: " + ex.getMessage());
         }
     }
 
-    private static Stats init() {
+    /**
+     * @param arg file name or group name and file name separated by '='
+     * @return the file name
+     */
+    private static String addSource(String arg) {
+        int separator = arg.indexOf('=');
+        if (separator < 0 || Files.exists(Paths.get(arg))) {
+            return arg;
+        }
+        String filename = arg.substring(separator + 1);
+        String group = arg.substring(0, separator);
+        sourceGroups.put(filename, group);
+        sourceGroups.put(Paths.get(filename).toString(), group);
+        return filename;
+    }
+
+    /**
+     * @return name of the group of keys from the source, the source itself
+     * if its group is not given
+     */
+    private static String getGroup(String source) {
+        return sourceGroups.getOrDefault(source, source);
+    }
+
+    /**
+     * @throws IllegalArgumentException if an option is invalid
+     */
+    private static ParallelAnalysis init(Config config) {
         startTime = System.nanoTime();
-        StatsContainer stats = new StatsContainer();
-        BasicStats basicStats = new BasicStats(
-                CHECK_VALIDITY,
-                CHECK_PRIME_DIFFERENCE,
-                CHECK_PRIME_UNIQUENESS,
-                CHECK_PRiVATE_EXPONENT
+        threads = config.getInt("threads", Runtime.getRuntime().availableProcessors());
+        statusMessageAfter = config.getLong("status-interval", 20) * 1000000000L;
+        mappedInput = config.getBoolean("mapped-input", false);
+        mappedReaders = config.getInt("mapped-readers", 4);
+        fileReaders = config.getInt("file-readers", 1);
+        checkpointFile = config.getString("checkpoint.file", null);
+        checkpointInterval = config.getLong("checkpoint.interval", 1000000);
+        findingsFile = config.getString("findings.file", null);
+        reportFile = config.getString("report.file", null);
+        metricsSampleInterval = config.getInt("metrics.sample-interval", 64);
+        if (config.getBoolean("generate", false)) {
+            initGenerator(config);
+        }
+        if (config.getBoolean("metrics", false)) {
+            startMetrics(config.getInt("metrics.port", 9404));
+        }
+        if (findingsFile != null) {
+            try {
+                findings = Findings.appendTo(Paths.get(findingsFile));
+            } catch (IOException ex) {
+                System.err.println("IO error while opening findings file: " + ex.getMessage());
+            }
+        }
+        if (findings == null) {
+            findings = Findings.toStandardOutput();
+        }
+        List<StatsProvider> providers = selectStats(config);
+        List<String> selected = new ArrayList<>();
+        for (StatsProvider provider : providers) {
+            selected.add(provider.getName());
+        }
+        context = new StatsContext(config, findings, selected, threads);
+        Supplier<StatsContainer> orderedFactory = () -> createStats(
+                ofKind(providers, StatsProvider.Kind.ORDERED), context);
+        ParallelAnalysis analysis;
+        if (config.getBoolean("group-by-source", false)) {
+            List<StatsProvider> groupProviders = ofKind(providers,
+                    StatsProvider.Kind.STANDARD, StatsProvider.Kind.ORDERED);
+            Supplier<StatsContainer> groupFactory = () -> createStats(
+                    ofKind(groupProviders, StatsProvider.Kind.STANDARD), context);
+            Supplier<StatsContainer> sharedFactory = () -> createStats(
+                    ofKind(providers, StatsProvider.Kind.SHARED), context);
+            BinaryOperator<Stats> groupJoin = (stats, ordered) -> StatsContainer.interleave(
+                    (StatsContainer) stats, (StatsContainer) ordered, isOrdered(groupProviders));
+            analysis = new ParallelAnalysis(
+                    () -> new GroupedStats(groupFactory::get, sharedFactory.get(),
+                            KeyCheck::getGroup),
+                    () -> new GroupedStats(orderedFactory::get, new StatsContainer(),
+                            KeyCheck::getGroup),
+                    (stats, ordered) -> GroupedStats.join((GroupedStats) stats,
+                            (GroupedStats) ordered, groupJoin),
+                    threads, config.getInt("batch-size", 1000));
+        } else {
+            analysis = new ParallelAnalysis(
+                    () -> createStats(ofKind(providers,
+                            StatsProvider.Kind.STANDARD, StatsProvider.Kind.SHARED), context),
+                    orderedFactory::get,
+                    (stats, ordered) -> StatsContainer.interleave(
+                            (StatsContainer) stats, (StatsContainer) ordered, isOrdered(providers)),
+                    threads, config.getInt("batch-size", 1000));
+        }
+        for (String name : config.getUnusedNames()) {
+            System.err.println("Option '" + name + "' is not used");
+        }
+        return analysis;
+    }
+
+    private static void initGenerator(Config config) {
+        generatedKeyCount = config.getLong("generate.count", DEFAULT_GENERATED_KEY_COUNT);
+        generatedKeySeed = config.getLong("generate.seed", new SecureRandom().nextLong());
+        generatedKeyFile = config.getString("generate.file", null);
+        generator = new KeyGenerator(
+                config.getInt("generate.bits", 512),
+                new BigInteger(config.getString("generate.exponent", "65537")),
+                config.getEnum("generate.strategy", PrimeStrategy.class, PrimeStrategy.RANDOM),
+                config.getInt("prime-certainty", 40),
+                generatedKeySeed,
+                threads
         );
-        stats.add(basicStats);
-        if (CHECK_PRIME_STRENGTH) {
-            PrimeStrengthStats strengthStats = new PrimeStrengthStats(
-                    SMOOTH_BOUND,
-                    PRIME_CERTAINITY
-            );
-            stats.add(strengthStats);
-        }
-        if (CHECK_ORDER_RANDOMNESS) {
-            RandomnessStats randStats = new RandomnessStats();
-            stats.add(randStats);
-        }
-        if (CHECK_DISTRIBUTION) {
-            DistributionStats distStats = new DistributionStats(BITS_FOR_INTERVAL);
-            stats.add(distStats);
+    }
+
+    /**
+     * @return providers of the selected stats in the order of selection
+     * @throws IllegalArgumentException if unknown stats are selected
+     */
+    private static List<StatsProvider> selectStats(Config config) {
+        Map<String, StatsProvider> available = new TreeMap<>();
+        for (StatsProvider provider : ServiceLoader.load(StatsProvider.class)) {
+            available.put(provider.getName(), provider);
+        }
+        List<String> names = new ArrayList<>(config.getList("stats", DEFAULT_STATS));
+        names.removeAll(config.getList("skip", new ArrayList<>()));
+        boolean publicKeysOnly = config.getBoolean("public-keys-only", false);
+        List<StatsProvider> providers = new ArrayList<>();
+        for (String name : names) {
+            StatsProvider provider = available.get(name);
+            if (provider == null) {
+                throw new IllegalArgumentException("Unknown stats '" + name + "', available are "
+                        + available.keySet());
+            }
+            if (!publicKeysOnly || !provider.isPrivate()) {
+                providers.add(provider);
+            }
+        }
+        return providers;
+    }
+
+    private static List<StatsProvider> ofKind(List<StatsProvider> providers,
+            StatsProvider.Kind... kinds) {
+        List<StatsProvider> selected = new ArrayList<>();
+        for (StatsProvider provider : providers) {
+            if (Arrays.asList(kinds).contains(provider.getKind())) {
+                selected.add(provider);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * @return for each provider whether its stats depend on the key order
+     */
+    private static boolean[] isOrdered(List<StatsProvider> providers) {
+        boolean[] ordered = new boolean[providers.size()];
+        for (int i = 0; i < ordered.length; i++) {
+            ordered[i] = providers.get(i).getKind() == StatsProvider.Kind.ORDERED;
+        }
+        return ordered;
+    }
+
+    private static StatsContainer createStats(List<StatsProvider> providers,
+            StatsContext context) {
+        StatsContainer stats = new StatsContainer();
+        for (StatsProvider provider : providers) {
+            stats.add(timed(provider.getName(), provider.create(context)));
         }
         return stats;
     }
 
+    /**
+     * Continues from the checkpoint if it exists. Each file is then analysed
+     * from the offset where the previous run stopped, so an interrupted run
+     * is resumed and only records appended since are added to a finished one.
+     */
+    private static void restoreCheckpoint(ParallelAnalysis stats) throws IOException {
+        if (checkpointFile == null) {
+            return;
+        }
+        Path path = Paths.get(checkpointFile);
+        if (Files.exists(path)) {
+            checkpoint = Checkpoint.read(path, stats);
+            checkpointKeyCount = checkpoint.getKeyCount();
+            System.out.println("Resuming from checkpoint '" + checkpointFile + "' after "
+                    + checkpointKeyCount + " keys");
+        } else {
+            checkpoint = new Checkpoint();
+        }
+    }
+
+    private static void saveCheckpoint(String filename, long offset, Stats stats)
+            throws IOException {
+        checkpoint.setOffset(filename, offset);
+        checkpoint.setKeyCount(checkpointKeyCount + keyCount.get());
+        checkpoint.write(Paths.get(checkpointFile), stats);
+    }
+
+    private static long getStartOffset(String filename) throws IOException {
+        if (checkpoint == null) {
+            return 0;
+        }
+        long offset = checkpoint.getOffset(filename);
+        if (offset > Files.size(Paths.get(filename))) {
+            throw new IOException("File '" + filename + "' is shorter than at the checkpoint");
+        }
+        return offset;
+    }
+
+    private static void startMetrics(int port) {
+        metrics = new Metrics(keyCount::get);
+        try {
+            metrics.register();
+        } catch (JMException ex) {
+            System.err.println("Metrics not registered: " + ex.getMessage());
+        }
+        if (port > 0) {
+            try {
+                metrics.startServer(port);
+                System.out.println("Metrics served at http://localhost:" + port + "/metrics");
+            } catch (IOException ex) {
+                System.err.println("Metrics server not started: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Wraps the stats to measure time of processing when metrics are enabled.
+     */
+    private static Stats timed(String name, Stats stats) {
+        if (metrics == null) {
+            return stats;
+        }
+        return new TimedStats(stats, metrics.getLatency(name), metricsSampleInterval);
+    }
+
+    private static long countBytesRead(KeySource reader, long previousOffset) {
+        long offset = reader.getOffset();
+        if (metrics != null) {
+            metrics.addBytesRead(offset - previousOffset);
+        }
+        return offset;
+    }
+
     private static void load(String filename, Stats stats) throws IOException {
-        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
-            System.out.println("Analysing file '" + filename + "'");
+        Path path = Paths.get(filename);
+        if (!Files.isRegularFile(path)) {
+            System.err.println("File '" + filename + "' not found");
+            return;
+        }
+        boolean columnar = ColumnarKeyReader.isColumnar(path);
+        try (KeySource reader = openReader(filename, columnar, getStartOffset(filename),
+                stats.getRequiredFields())) {
+            printAnalysedFile(filename, reader.getOffset(), columnar);
             lastStatusMessageTime = System.nanoTime();
-            Params params = null;
+            long offset = reader.getOffset();
             for (;;) {
-                String line = reader.readLine();
-                if (line == null) {
+                Params params = reader.next();
+                if (params == null) {
                     break;
                 }
-                String[] tuple = line.split(":", 2);
-                if (tuple.length != 2) {
-                    continue;
+                if (!columnar) {
+                    offset = countBytesRead(reader, offset);
                 }
-                String value = tuple[1].replaceAll("\\s", "");
-                switch (tuple[0]) {
-                    case "PUBL":
-                        params = readPublicKey(value);
-                        break;
-                    case "PRIV":
-                        if (params == null) {
-                            throw new IOException("Loading private key "
-                                    + value + "  while public key not loaded");
-                        }
-                        readPrivateKey(value, params);
-                        stats.process(params);
-                        params = null;
-                        showProgress();
+                stats.process(params);
+                if (showProgress() % checkpointInterval == 0 && checkpoint != null) {
+                    saveCheckpoint(filename, reader.getOffset(), stats);
                 }
             }
-        } catch (FileNotFoundException ex) {
-            System.err.println("File '" + filename + "' not found");
+            if (checkpoint != null) {
+                saveCheckpoint(filename, reader.getOffset(), stats);
+            }
+        }
+    }
+
+    /**
+     * @param offset where to start, a key index in a columnar file
+     */
+    private static KeySource openReader(String filename, boolean columnar, long offset,
+            Set<KeyField> fields) throws IOException {
+        if (columnar) {
+            return new ColumnarKeyReader(Paths.get(filename), offset, Long.MAX_VALUE, fields);
         }
+        FileInputStream input = new FileInputStream(filename);
+        input.getChannel().position(offset);
+        return new KeyReader(input, filename, offset, fields);
     }
 
-    private static Params readPublicKey(String value) throws IOException {
-        Params params = new Params();
-        BigInteger[] values = parseTlv(value);
-        if (values.length != 2) {
-            throw new IOException("Public key " + value + " not composed from 2 values");
+    /**
+     * Converts key files to a columnar key file, which is faster to analyse
+     * repeatedly.
+     */
+    private static void importKeys(List<String> filenames, Config config) {
+        String target = config.getString("import", null);
+        try (ColumnarKeyWriter writer = new ColumnarKeyWriter(Paths.get(target),
+                config.getInt("import.block-size", 4096),
+                config.getBoolean("import.compress", true))) {
+            for (String filename : filenames) {
+                System.out.println("Importing file '" + filename + "'");
+                boolean columnar = ColumnarKeyReader.isColumnar(Paths.get(filename));
+                try (KeySource reader = openReader(filename, columnar, 0,
+                        EnumSet.allOf(KeyField.class))) {
+                    for (Params params = reader.next(); params != null; params = reader.next()) {
+                        writer.write(params);
+                    }
+                }
+            }
+            System.out.println(writer.getKeyCount() + " keys imported to '" + target + "'");
+        } catch (IOException ex) {
+            System.err.println("IO error: " + ex.getMessage());
         }
-        params.setExponent(values[0]);
-        params.setModulus(values[1]);
-        return params;
     }
 
-    private static void readPrivateKey(String value, Params params) throws IOException {
-        BigInteger[] values = parseTlv(value);
-        if (values.length != 2) {
-            throw new IOException("Private key " + value + "  not composed from 2 values");
+    private static void loadMapped(String filename, ParallelAnalysis stats) throws IOException {
+        Path path = Paths.get(filename);
+        if (!Files.isRegularFile(path)) {
+            System.err.println("File '" + filename + "' not found");
+            return;
+        }
+        boolean columnar = ColumnarKeyReader.isColumnar(path);
+        long start = getStartOffset(filename);
+        long[] boundaries = columnar ? ColumnarKeyReader.split(path, start, mappedReaders)
+                : MappedKeyReader.split(path, start, mappedReaders);
+        printAnalysedFile(filename, boundaries[0], columnar);
+        lastStatusMessageTime = System.nanoTime();
+        List<RegionReader> readers = new ArrayList<>();
+        for (int i = 0; i + 1 < boundaries.length; i++) {
+            RegionReader reader = new RegionReader(path, columnar, boundaries[i],
+                    boundaries[i + 1], stats.getRequiredFields(), stats.createPart());
+            reader.start();
+            readers.add(reader);
+        }
+        IOException failure = null;
+        for (RegionReader reader : readers) {
+            try {
+                reader.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading '" + filename + "'", ex);
+            }
+            if (failure == null) {
+                failure = reader.failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        // regions are processed concurrently, so only a whole file is checkpointed
+        if (checkpoint != null) {
+            saveCheckpoint(filename, boundaries[boundaries.length - 1], stats);
         }
-        params.setP(values[0]);
-        params.setQ(values[1]);
     }
 
-    private static BigInteger[] parseTlv(String values) throws IOException {
-        int totalLength = values.length();
-        if (totalLength % 2 == 1) {
-            throw new IOException("Odd String length of " + values);
+    /**
+     * Reads up to fileReaders files at once, each into its own part, so that
+     * the workers are kept busy while some files wait for IO and a slow or
+     * corrupt file does not hold back the others. Parts are created in the
+     * order of the files, so the key order is the same as in sequential
+     * reading. Each checkpoint waits for the files being read, so only whole
+     * files are checkpointed.
+     */
+    private static void loadConcurrently(List<String> filenames, ParallelAnalysis stats)
+            throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(fileReaders, task -> {
+            Thread thread = new Thread(task, "keycheck-file-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Semaphore idleReaders = new Semaphore(fileReaders);
+        List<FileReader> readers = new ArrayList<>();
+        int checkpointedReaders = 0;
+        long checkpointedKeyCount = 0;
+        lastStatusMessageTime = System.nanoTime();
+        try {
+            for (String filename : filenames) {
+                if (checkpoint != null
+                        && keyCount.get() - checkpointedKeyCount >= checkpointInterval) {
+                    idleReaders.acquire(fileReaders);
+                    saveCheckpoint(readers.subList(checkpointedReaders, readers.size()), stats);
+                    checkpointedReaders = readers.size();
+                    checkpointedKeyCount = keyCount.get();
+                    idleReaders.release(fileReaders);
+                }
+                idleReaders.acquire();
+                FileReader reader = new FileReader(filename, stats.createPart(),
+                        stats.getRequiredFields(), idleReaders);
+                readers.add(reader);
+                reader.result = pool.submit(reader);
+            }
+            idleReaders.acquire(fileReaders);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading files", ex);
+        } finally {
+            pool.shutdown();
         }
-        List<BigInteger> result = new ArrayList<>();
-        int length;
-        for (int offset = 0; offset != totalLength; offset += 6 + 2 * length) {
-            if (offset > totalLength) {
-                throw new IOException("Invalid TLV length in " + values);
+        for (FileReader reader : readers) {
+            try {
+                reader.result.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading files", ex);
+            } catch (ExecutionException ex) {
+                throw new IllegalStateException("Reading of '" + reader.filename + "' failed",
+                        ex.getCause());
             }
-            if (!values.startsWith("82", offset)) {
-                throw new IOException("Invalid TLV type in " + values);
+        }
+        if (checkpoint != null) {
+            saveCheckpoint(readers.subList(checkpointedReaders, readers.size()), stats);
+        }
+        int failedCount = 0;
+        for (FileReader reader : readers) {
+            if (reader.failure != null) {
+                failedCount++;
             }
-            length = Integer.parseInt(values.substring(offset + 2, offset + 6), 16);
-            String value = values.substring(offset + 6, offset + 6 + 2 * length);
-            result.add(new BigInteger(value, 16));
         }
-        return result.toArray(new BigInteger[result.size()]);
+        System.out.println((readers.size() - failedCount) + " files analysed"
+                + (failedCount == 0 ? "" : ", " + failedCount + " files failed"));
     }
 
-    private static void showProgress() {
-        keyCount++;
-        if (keyCount % 100 == 0 && System.nanoTime() - lastStatusMessageTime
-                > STATUS_MESSAGE_AFTER) {
-            System.out.println(keyCount + " keys processed...");
+    private static void saveCheckpoint(List<FileReader> finished, Stats stats)
+            throws IOException {
+        FileReader last = null;
+        for (FileReader reader : finished) {
+            if (reader.offset >= 0) {
+                checkpoint.setOffset(reader.filename, reader.offset);
+                last = reader;
+            }
+        }
+        if (last != null) {
+            saveCheckpoint(last.filename, last.offset, stats);
+        }
+    }
+
+    private static void printAnalysedFile(String filename, long offset, boolean columnar) {
+        if (offset == 0) {
+            System.out.println("Analysing file '" + filename + "'");
+        } else if (columnar) {
+            System.out.println("Analysing file '" + filename + "' from key " + offset);
+        } else {
+            System.out.println("Analysing file '" + filename + "' from offset " + offset);
+        }
+    }
+
+    /**
+     * @return count of keys processed so far
+     */
+    private static long showProgress() {
+        long count = keyCount.incrementAndGet();
+        if (count % 100 == 0 && System.nanoTime() - lastStatusMessageTime
+                > statusMessageAfter) {
+            System.out.println(count + " keys processed...");
             lastStatusMessageTime = System.nanoTime();
         }
+        return count;
     }
 
-    private static void printStats(Stats stats) {
+    private static void printStats(ParallelAnalysis stats) {
+        stats.finish();
+        try {
+            findings.flush();
+        } catch (IOException ex) {
+            System.err.println("IO error while writing findings: " + ex.getMessage());
+        }
         long elapsedTime = (System.nanoTime() - startTime) / 1000000;
         System.out.println("Analysis completed - " + keyCount
                 + " keys processed in " + elapsedTime + " ms");
         stats.print();
     }
+
+    /**
+     * Writes the results as JSON, or as CSV if the report file name ends
+     * with .csv.
+     */
+    private static void writeReport(ParallelAnalysis stats) {
+        try (Writer output = Files.newBufferedWriter(Paths.get(reportFile));
+                ReportWriter writer = reportFile.endsWith(".csv")
+                        ? new CsvReportWriter(output) : new JsonReportWriter(output)) {
+            writer.value("keys", keyCount.get());
+            writer.value("elapsed_ms", (System.nanoTime() - startTime) / 1000000);
+            stats.report(writer);
+        } catch (IOException ex) {
+            System.err.println("IO error while writing report: " + ex.getMessage());
+        }
+    }
+
+    private static void closeFindings() {
+        try {
+            findings.close();
+            if (findings.isFile()) {
+                System.out.println(findings.getCount() + " findings appended to '"
+                        + findingsFile + "'");
+            }
+        } catch (IOException ex) {
+            System.err.println("IO error while writing findings: " + ex.getMessage());
+        }
+    }
+
+    private static class RegionReader extends Thread {
+
+        private final Path path;
+        private final boolean columnar;
+        private final long start;
+        private final long end;
+        private final Set<KeyField> fields;
+        private final ParallelAnalysis.Part part;
+        private IOException failure;
+
+        /**
+         * @param start start of the region, a key index in a columnar file
+         */
+        RegionReader(Path path, boolean columnar, long start, long end, Set<KeyField> fields,
+                ParallelAnalysis.Part part) {
+            this.path = path;
+            this.columnar = columnar;
+            this.start = start;
+            this.end = end;
+            this.fields = fields;
+            this.part = part;
+        }
+
+        @Override
+        public void run() {
+            try (KeySource reader = columnar ? new ColumnarKeyReader(path, start, end, fields)
+                    : new MappedKeyReader(path, start, end, fields)) {
+                long offset = start;
+                for (;;) {
+                    Params params = reader.next();
+                    if (params == null) {
+                        break;
+                    }
+                    if (!columnar) {
+                        offset = countBytesRead(reader, offset);
+                    }
+                    part.process(params);
+                    showProgress();
+                }
+            } catch (IOException ex) {
+                failure = ex;
+            } finally {
+                part.close();
+            }
+        }
+    }
+
+    /**
+     * Reads one file into a part of the analysis and frees its slot among
+     * the concurrent readers when done.
+     */
+    private static class FileReader implements Runnable {
+
+        private final String filename;
+        private final ParallelAnalysis.Part part;
+        private final Set<KeyField> fields;
+        private final Semaphore idleReaders;
+        private Future<?> result;
+        // offset after the last processed key or -1, published by releasing the slot
+        private long offset = -1;
+        private IOException failure;
+
+        FileReader(String filename, ParallelAnalysis.Part part, Set<KeyField> fields,
+                Semaphore idleReaders) {
+            this.filename = filename;
+            this.part = part;
+            this.fields = fields;
+            this.idleReaders = idleReaders;
+        }
+
+        @Override
+        public void run() {
+            long fileKeyCount = 0;
+            long processedOffset = -1;
+            try {
+                Path path = Paths.get(filename);
+                if (!Files.isRegularFile(path)) {
+                    throw new IOException("file not found");
+                }
+                boolean columnar = ColumnarKeyReader.isColumnar(path);
+                try (KeySource reader = openReader(filename, columnar, getStartOffset(filename),
+                        fields)) {
+                    printAnalysedFile(filename, reader.getOffset(), columnar);
+                    processedOffset = reader.getOffset();
+                    for (Params params = reader.next(); params != null; params = reader.next()) {
+                        if (!columnar) {
+                            countBytesRead(reader, processedOffset);
+                        }
+                        part.process(params);
+                        processedOffset = reader.getOffset();
+                        fileKeyCount++;
+                        showProgress();
+                    }
+                }
+                System.out.println("File '" + filename + "' finished, " + fileKeyCount
+                        + " keys processed");
+            } catch (IOException ex) {
+                failure = ex;
+                System.err.println("IO error in file '" + filename + "' after " + fileKeyCount
+                        + " keys: " + ex.getMessage());
+                if (metrics != null) {
+                    metrics.addInputError();
+                }
+            } finally {
+                offset = processedOffset;
+                part.close();
+                idleReaders.release();
+            }
+        }
+    }
 }
@@ -0,0 +1,13 @@
+package cz.muni.fi.keycheck;
+
+/**
+ * Fields of a key, which can be loaded into Params.
+ *
+ * @author David Formanek
+ */
+enum KeyField {
+    EXPONENT,
+    MODULUS,
+    P,
+    Q
+}
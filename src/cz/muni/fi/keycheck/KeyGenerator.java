@@ -0,0 +1,111 @@
+package cz.muni.fi.keycheck;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Generates synthetic keys on several threads. Keys are generated in blocks,
+ * each block from its own random stream seeded from the main seed, and the
+ * blocks are passed on in order, so the same seed gives the same keys for
+ * any number of threads. Primes p with p-1 not coprime to the exponent are
+ * replaced individually.
+ *
+ * @author David Formanek
+ */
+class KeyGenerator {
+
+    private static final int BLOCK_SIZE = 64;
+    private static final String SOURCE = "generated";
+
+    private final int primeBits;
+    private final BigInteger exponent;
+    private final PrimeStrategy strategy;
+    private final int primeCertainity;
+    private final long seed;
+    private final int threads;
+
+    public KeyGenerator(int primeBits, BigInteger exponent, PrimeStrategy strategy,
+            int primeCertainity, long seed, int threads) {
+        this.primeBits = primeBits;
+        this.exponent = exponent;
+        this.strategy = strategy;
+        this.primeCertainity = primeCertainity;
+        this.seed = seed;
+        this.threads = threads;
+    }
+
+    /**
+     * Generates keys and passes them to the consumer in the order of their
+     * positions.
+     */
+    public void generate(long count, Consumer<Params> consumer) {
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "keycheck-generator-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            SplittableRandom streams = new SplittableRandom(seed);
+            Deque<Future<List<Params>>> blocks = new ArrayDeque<>();
+            long nextPosition = 0;
+            while (nextPosition < count || !blocks.isEmpty()) {
+                while (nextPosition < count && blocks.size() < 2 * threads) {
+                    long position = nextPosition;
+                    int size = (int) Math.min(BLOCK_SIZE, count - position);
+                    long blockSeed = streams.nextLong();
+                    blocks.add(executor.submit(() -> generateBlock(position, size, blockSeed)));
+                    nextPosition += size;
+                }
+                for (Params params : blocks.poll().get()) {
+                    consumer.accept(params);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while generating keys", ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Key generation failed", ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private List<Params> generateBlock(long position, int size, long blockSeed) {
+        Random random = new Random(blockSeed);
+        List<Params> keys = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            BigInteger p = generatePrime(random);
+            BigInteger q = generatePrime(random);
+            Params params = new Params();
+            params.setP(p);
+            params.setQ(q);
+            params.setExponent(exponent);
+            params.setModulus(p.multiply(q));
+            params.setSource(SOURCE);
+            params.setPosition(position + i);
+            keys.add(params);
+        }
+        return keys;
+    }
+
+    private BigInteger generatePrime(Random random) {
+        for (;;) {
+            BigInteger prime = strategy.generate(primeBits, primeCertainity, random);
+            if (prime.subtract(BigInteger.ONE).gcd(exponent).equals(BigInteger.ONE)) {
+                return prime;
+            }
+        }
+    }
+}
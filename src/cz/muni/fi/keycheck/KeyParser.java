@@ -0,0 +1,195 @@
+package cz.muni.fi.keycheck;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Set;
+
+/**
+ * Parses lines of key files directly from bytes. A public key record
+ * "PUBL: 82LLLL[exponent]82LLLL[modulus]" is completed by the following
+ * private key record "PRIV: 82LLLL[p]82LLLL[q]", the values are hexadecimal
+ * and may contain whitespace. Hex digits are decoded into a reused buffer and
+ * the TLV values are read from it without any intermediate strings.
+ * <p>
+ * Only the required fields are converted to numbers. When neither p nor q is
+ * required, keys are completed by public key records already and private key
+ * records are skipped.
+ *
+ * @author David Formanek
+ */
+class KeyParser {
+
+    private static final int TLV_TYPE = 0x82;
+    private static final int TLV_HEADER_LENGTH = 3;
+    private static final byte[] PUBLIC_KEY_TAG = {'P', 'U', 'B', 'L'};
+    private static final byte[] PRIVATE_KEY_TAG = {'P', 'R', 'I', 'V'};
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static {
+        for (int i = 0; i < HEX_VALUES.length; i++) {
+            HEX_VALUES[i] = -1;
+        }
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    private final String source;
+    private final boolean[] publicKeyFields;
+    private final boolean[] privateKeyFields;
+    private final boolean publicKeysOnly;
+    private final BigInteger[] values = new BigInteger[2];
+    private byte[] decoded = new byte[1024];
+    private Params params;
+
+    public KeyParser(String source, Set<KeyField> fields) {
+        this.source = source;
+        publicKeyFields = new boolean[]{
+            fields.contains(KeyField.EXPONENT),
+            fields.contains(KeyField.MODULUS)
+        };
+        privateKeyFields = new boolean[]{
+            fields.contains(KeyField.P),
+            fields.contains(KeyField.Q)
+        };
+        publicKeysOnly = !privateKeyFields[0] && !privateKeyFields[1];
+    }
+
+    /**
+     * Parses one line without the line terminator.
+     *
+     * @param offset offset of the line in the source
+     * @return key completed by the line or null
+     */
+    public Params parseLine(byte[] line, int from, int to, long offset) throws IOException {
+        int colon = indexOf(line, from, to, (byte) ':');
+        if (colon < 0) {
+            return null;
+        }
+        if (equals(line, from, colon, PUBLIC_KEY_TAG)) {
+            if (parseTlv(line, colon + 1, to, publicKeyFields) != 2) {
+                throw new IOException("Public key " + valueString(line, colon + 1, to)
+                        + " not composed from 2 values");
+            }
+            params = new Params();
+            params.setSource(source);
+            params.setPosition(offset);
+            params.setExponent(values[0]);
+            params.setModulus(values[1]);
+            if (publicKeysOnly) {
+                Params key = params;
+                params = null;
+                return key;
+            }
+        } else if (!publicKeysOnly && equals(line, from, colon, PRIVATE_KEY_TAG)) {
+            if (params == null) {
+                throw new IOException("Loading private key " + valueString(line, colon + 1, to)
+                        + "  while public key not loaded");
+            }
+            if (parseTlv(line, colon + 1, to, privateKeyFields) != 2) {
+                throw new IOException("Private key " + valueString(line, colon + 1, to)
+                        + "  not composed from 2 values");
+            }
+            Params key = params;
+            params = null;
+            key.setP(values[0]);
+            key.setQ(values[1]);
+            return key;
+        }
+        return null;
+    }
+
+    private int parseTlv(byte[] line, int from, int to, boolean[] required)
+            throws IOException {
+        int length = decodeHex(line, from, to);
+        int count = 0;
+        int offset = 0;
+        while (offset != length) {
+            if (offset + TLV_HEADER_LENGTH > length) {
+                throw new IOException("Invalid TLV length in " + valueString(line, from, to));
+            }
+            if ((decoded[offset] & 0xff) != TLV_TYPE) {
+                throw new IOException("Invalid TLV type in " + valueString(line, from, to));
+            }
+            int valueLength = (decoded[offset + 1] & 0xff) << 8 | (decoded[offset + 2] & 0xff);
+            offset += TLV_HEADER_LENGTH;
+            if (offset + valueLength > length) {
+                throw new IOException("Invalid TLV length in " + valueString(line, from, to));
+            }
+            if (count < values.length) {
+                values[count] = required[count]
+                        ? new BigInteger(1, decoded, offset, valueLength) : null;
+            }
+            count++;
+            offset += valueLength;
+        }
+        return count;
+    }
+
+    private int decodeHex(byte[] line, int from, int to) throws IOException {
+        if ((to - from) / 2 > decoded.length) {
+            decoded = new byte[(to - from) / 2];
+        }
+        int length = 0;
+        int high = -1;
+        for (int i = from; i < to; i++) {
+            byte c = line[i];
+            if (isWhitespace(c)) {
+                continue;
+            }
+            int digit = c < 0 ? -1 : HEX_VALUES[c];
+            if (digit < 0) {
+                throw new IOException("Invalid hex digit in " + valueString(line, from, to));
+            }
+            if (high < 0) {
+                high = digit;
+            } else {
+                decoded[length++] = (byte) (high << 4 | digit);
+                high = -1;
+            }
+        }
+        if (high >= 0) {
+            throw new IOException("Odd String length of " + valueString(line, from, to));
+        }
+        return length;
+    }
+
+    private static boolean isWhitespace(byte c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == 0x0b;
+    }
+
+    private static int indexOf(byte[] line, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            if (line[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean equals(byte[] line, int from, int to, byte[] tag) {
+        if (to - from != tag.length) {
+            return false;
+        }
+        for (int i = 0; i < tag.length; i++) {
+            if (line[from + i] != tag[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String valueString(byte[] line, int from, int to) {
+        StringBuilder builder = new StringBuilder(to - from);
+        for (int i = from; i < to; i++) {
+            if (!isWhitespace(line[i])) {
+                builder.append((char) (line[i] & 0xff));
+            }
+        }
+        return builder.toString();
+    }
+}
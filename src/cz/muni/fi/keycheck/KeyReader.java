@@ -0,0 +1,107 @@
+package cz.muni.fi.keycheck;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+
+/**
+ * Reads keys from a stream of key file lines, see KeyParser.
+ *
+ * @author David Formanek
+ */
+class KeyReader implements KeySource {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final InputStream input;
+    private final KeyParser parser;
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+    private long bufferOffset;
+    private long keyEnd;
+    private boolean endOfInput = false;
+
+    public KeyReader(InputStream input, String source, Set<KeyField> fields) {
+        this(input, source, 0, fields);
+    }
+
+    /**
+     * @param offset offset of the stream start in the file, which should be
+     * the beginning of a public key record
+     */
+    public KeyReader(InputStream input, String source, long offset, Set<KeyField> fields) {
+        this.input = input;
+        parser = new KeyParser(source, fields);
+        bufferOffset = offset;
+        keyEnd = offset;
+    }
+
+    /**
+     * The reading can be later resumed from the returned offset.
+     */
+    @Override
+    public long getOffset() {
+        return keyEnd;
+    }
+
+    @Override
+    public Params next() throws IOException {
+        for (;;) {
+            int lineEnd = findLineEnd();
+            if (lineEnd < 0) {
+                if (endOfInput) {
+                    if (position == limit) {
+                        return null;
+                    }
+                    lineEnd = limit;
+                } else {
+                    fill();
+                    continue;
+                }
+            }
+            int lineStart = position;
+            position = lineEnd == limit ? limit : lineEnd + 1;
+            Params params = parser.parseLine(buffer, lineStart, lineEnd,
+                    bufferOffset + lineStart);
+            if (params != null) {
+                keyEnd = bufferOffset + position;
+                return params;
+            }
+        }
+    }
+
+    private int findLineEnd() {
+        for (int i = position; i < limit; i++) {
+            if (buffer[i] == '\n' || buffer[i] == '\r') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            bufferOffset += position;
+            position = 0;
+        }
+        if (limit == buffer.length) {
+            byte[] larger = new byte[2 * buffer.length];
+            System.arraycopy(buffer, 0, larger, 0, limit);
+            buffer = larger;
+        }
+        int read = input.read(buffer, limit, buffer.length - limit);
+        if (read < 0) {
+            endOfInput = true;
+        } else {
+            limit += read;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+}
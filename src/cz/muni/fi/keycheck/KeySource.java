@@ -0,0 +1,22 @@
+package cz.muni.fi.keycheck;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ *
+ * @author David Formanek
+ */
+interface KeySource extends Closeable {
+
+    /**
+     * @return next key or null if there are no more keys
+     */
+    Params next() throws IOException;
+
+    /**
+     * @return offset in the file following the record of the last key
+     * returned by next(), in a columnar key file the index of the next key
+     */
+    long getOffset();
+}
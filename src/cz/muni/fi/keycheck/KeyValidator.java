@@ -0,0 +1,197 @@
+package cz.muni.fi.keycheck;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Checks validity of keys by a cascade of tests ordered from the cheapest.
+ * The factors are checked against the modulus and the exponent, then primes
+ * are sieved by the primes under 1024 and tested by a strong base-2 probable
+ * prime test. Every rejection is a proof of invalidity, so the full
+ * probabilistic primality test with the given certainty is run only on a
+ * sample of keys accepted by the previous stages.
+ *
+ * @author David Formanek
+ */
+class KeyValidator {
+
+    private static final int RADIX = 10;
+    private static final BigInteger TWO = BigInteger.valueOf(2);
+    private static final int SIEVE_BOUND = 1 << 10;
+    private static final int SIEVE_PRIME_COUNT = SmallPrimes.countBelow(SIEVE_BOUND);
+
+    /**
+     * Stages of the validation in the order of application.
+     */
+    enum Stage {
+        PRODUCT("modulus product"),
+        EXPONENT("exponent coprimality"),
+        SIEVE("small prime sieve"),
+        STRONG_TEST("strong base-2 test"),
+        FULL_TEST("full primality test");
+
+        private final String name;
+
+        Stage(String name) {
+            this.name = name;
+        }
+    }
+
+    private final int primeCertainity;
+    private final long fullTestInterval;
+    private final Findings findings;
+    private final long[] rejectedCounts = new long[Stage.values().length];
+    private long acceptedCount = 0;
+    private long fullyTestedCount = 0;
+
+    /**
+     * @param fullTestInterval the full primality test is run on every n-th
+     * key passing the cheaper stages, 1 to test all keys
+     * @param findings sink of the invalid keys
+     */
+    public KeyValidator(int primeCertainity, long fullTestInterval, Findings findings) {
+        this.primeCertainity = primeCertainity;
+        this.fullTestInterval = fullTestInterval;
+        this.findings = findings;
+    }
+
+    public boolean isValid(Params params) {
+        Stage stage = findRejectingStage(params);
+        if (stage == null) {
+            acceptedCount++;
+            return true;
+        }
+        rejectedCounts[stage.ordinal()]++;
+        return false;
+    }
+
+    private Stage findRejectingStage(Params params) {
+        BigInteger modulus = params.getModulus();
+        BigInteger p = params.getP();
+        BigInteger q = params.getQ();
+        if (!p.multiply(q).equals(modulus)) {
+            findings.add("modulus-not-product", params, modulus,
+                    "Modulus " + modulus.toString(RADIX) + " has not factors p a q");
+            return Stage.PRODUCT;
+        }
+        BigInteger exponent = params.getExponent();
+        BigInteger phi = params.getPhi();
+        if (!phi.gcd(exponent).equals(BigInteger.ONE)) {
+            findings.add("exponent-not-coprime", params, exponent, "Exponent "
+                    + exponent.toString(RADIX) + " is not coprime to phi of " + modulus.toString(RADIX));
+            return Stage.EXPONENT;
+        }
+        for (BigInteger prime : new BigInteger[]{p, q}) {
+            Stage stage = findRejectingStage(prime);
+            if (stage != null) {
+                findings.add("composite-prime", params, prime,
+                        prime.toString(RADIX) + " is not a prime");
+                return stage;
+            }
+        }
+        if ((acceptedCount + rejectedCounts[Stage.FULL_TEST.ordinal()]) % fullTestInterval == 0) {
+            fullyTestedCount++;
+            for (BigInteger prime : new BigInteger[]{p, q}) {
+                if (!prime.isProbablePrime(primeCertainity)) {
+                    findings.add("composite-prime", params, prime,
+                            prime.toString(RADIX) + " is not a prime");
+                    return Stage.FULL_TEST;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the full primality test is run on every n-th key passing the
+     * cheaper stages
+     */
+    public long getFullTestInterval() {
+        return fullTestInterval;
+    }
+
+    private Stage findRejectingStage(BigInteger n) {
+        if (n.compareTo(TWO) < 0) {
+            return Stage.SIEVE;
+        }
+        if (SmallPrimes.hasFactor(n, SIEVE_PRIME_COUNT)) {
+            return Stage.SIEVE;
+        }
+        // numbers under the square of the sieve bound are primes now
+        boolean isSmall = n.bitLength() <= 2 * Integer.numberOfTrailingZeros(SIEVE_BOUND);
+        if (isSmall || isStrongProbablePrime(n)) {
+            return null;
+        }
+        return Stage.STRONG_TEST;
+    }
+
+    /**
+     * Miller-Rabin test to base 2 of odd n bigger than 2.
+     */
+    private static boolean isStrongProbablePrime(BigInteger n) {
+        BigInteger nMinusOne = n.subtract(BigInteger.ONE);
+        int s = nMinusOne.getLowestSetBit();
+        BigInteger x = TWO.modPow(nMinusOne.shiftRight(s), n);
+        if (x.equals(BigInteger.ONE) || x.equals(nMinusOne)) {
+            return true;
+        }
+        for (int i = 1; i < s; i++) {
+            x = x.multiply(x).mod(n);
+            if (x.equals(nMinusOne)) {
+                return true;
+            }
+            if (x.equals(BigInteger.ONE)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    public void merge(KeyValidator other) {
+        for (int i = 0; i < rejectedCounts.length; i++) {
+            rejectedCounts[i] += other.rejectedCounts[i];
+        }
+        acceptedCount += other.acceptedCount;
+        fullyTestedCount += other.fullyTestedCount;
+    }
+
+    public void save(DataOutput output) throws IOException {
+        for (long count : rejectedCounts) {
+            output.writeLong(count);
+        }
+        output.writeLong(acceptedCount);
+        output.writeLong(fullyTestedCount);
+    }
+
+    public void load(DataInput input) throws IOException {
+        for (int i = 0; i < rejectedCounts.length; i++) {
+            rejectedCounts[i] += input.readLong();
+        }
+        acceptedCount += input.readLong();
+        fullyTestedCount += input.readLong();
+    }
+
+    public void report(ReportWriter writer) throws IOException {
+        Map<String, Long> rejections = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            rejections.put(stage.name, rejectedCounts[stage.ordinal()]);
+        }
+        writer.counts("rejected_by", rejections);
+        writer.value("fully_tested_keys", fullyTestedCount);
+        writer.value("full_test_interval", fullTestInterval);
+    }
+
+    public void print() {
+        StringBuilder rejections = new StringBuilder("Invalid keys rejected by ");
+        for (Stage stage : Stage.values()) {
+            rejections.append(stage.ordinal() == 0 ? "" : ", ")
+                    .append(stage.name).append(": ").append(rejectedCounts[stage.ordinal()]);
+        }
+        System.out.println(rejections);
+        System.out.println(fullyTestedCount + " keys were sampled for the full primality test");
+    }
+}
@@ -0,0 +1,58 @@
+package cz.muni.fi.keycheck;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+
+/**
+ * Writes keys in the format read by {@link KeyReader}, a public key record
+ * "PUBL: 82LLLL[exponent]82LLLL[modulus]" followed by a private key record
+ * "PRIV: 82LLLL[p]82LLLL[q]".
+ *
+ * @author David Formanek
+ */
+class KeyWriter implements Closeable {
+
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+    private static final int TLV_TYPE = 0x82;
+
+    private final OutputStream output;
+
+    public KeyWriter(OutputStream output) {
+        this.output = new BufferedOutputStream(output, 1 << 16);
+    }
+
+    public void write(Params params) throws IOException {
+        output.write("PUBL: ".getBytes());
+        writeTlv(params.getExponent());
+        writeTlv(params.getModulus());
+        output.write("\nPRIV: ".getBytes());
+        writeTlv(params.getP());
+        writeTlv(params.getQ());
+        output.write('\n');
+    }
+
+    private void writeTlv(BigInteger value) throws IOException {
+        byte[] bytes = value.toByteArray();
+        int start = bytes[0] == 0 && bytes.length > 1 ? 1 : 0;
+        int length = bytes.length - start;
+        writeByte(TLV_TYPE);
+        writeByte(length >> 8);
+        writeByte(length);
+        for (int i = start; i < bytes.length; i++) {
+            writeByte(bytes[i]);
+        }
+    }
+
+    private void writeByte(int value) throws IOException {
+        output.write(HEX_DIGITS[(value >> 4) & 0xf]);
+        output.write(HEX_DIGITS[value & 0xf]);
+    }
+
+    @Override
+    public void close() throws IOException {
+        output.close();
+    }
+}
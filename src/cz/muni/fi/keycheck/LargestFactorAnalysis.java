@@ -0,0 +1,348 @@
+package cz.muni.fi.keycheck;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Estimates the largest prime factor of p-1 or p+1 above the trial division
+ * bound, where p is a known prime. An element of order dividing p-1 (powers
+ * of 3 mod p) or p+1 (norm one elements of GF(p^2), represented by Lucas
+ * sequences) is raised to the product of prime powers up to B1, one bit
+ * length of primes at a time, so the bit length at which the element becomes
+ * one is the bit length of the largest factor. If stage 1 fails, a baby-step
+ * giant-step search over multiples of d finds a single remaining factor up
+ * to B2.
+ * <p>
+ * The work runs on a bounded pool of threads and each number has a time
+ * budget, which is checked between exponentiations.
+ *
+ * @author David Formanek
+ */
+class LargestFactorAnalysis {
+
+    /**
+     * The largest factor is bigger than B2 or stage 1 missed a prime power.
+     */
+    public static final int UNRESOLVED = -1;
+    public static final int TIMED_OUT = -2;
+
+    private static final BigInteger TWO = BigInteger.valueOf(2);
+    private static final BigInteger THREE = BigInteger.valueOf(3);
+    private static final int SIEVE_SEGMENT = 1 << 16;
+    private static final int DEADLINE_CHECK_INTERVAL = 1 << 10;
+
+    private final long b1;
+    private final long b2;
+    private final long timeBudget;
+    private final int[] bandBitLengths;
+    private final BigInteger[] bandExponents;
+    private final ExecutorService executor;
+
+    /**
+     * @param trialBound primes under the bound are expected to be divided out
+     * @param timeBudget time budget for one number in milliseconds
+     */
+    public LargestFactorAnalysis(int trialBound, long b1, long b2, long timeBudget,
+            int threads) {
+        this.b1 = Math.max(b1, trialBound);
+        this.b2 = b2;
+        this.timeBudget = timeBudget * 1000000;
+        List<Integer> bitLengths = new ArrayList<>();
+        List<BigInteger> exponents = new ArrayList<>();
+        List<BigInteger> band = new ArrayList<>();
+        long[] packed = {1};
+        int[] bandBitLength = {0};
+        forEachPrime(trialBound, this.b1 + 1, prime -> {
+            int bitLength = 64 - Long.numberOfLeadingZeros(prime);
+            if (bitLength != bandBitLength[0]) {
+                addBand(bandBitLength[0], band, packed[0], bitLengths, exponents);
+                band.clear();
+                packed[0] = 1;
+                bandBitLength[0] = bitLength;
+            }
+            long power = prime;
+            while (power <= this.b1 / prime) {
+                power *= prime;
+            }
+            if (packed[0] > Long.MAX_VALUE / power) {
+                band.add(BigInteger.valueOf(packed[0]));
+                packed[0] = 1;
+            }
+            packed[0] *= power;
+        });
+        addBand(bandBitLength[0], band, packed[0], bitLengths, exponents);
+        bandBitLengths = new int[bitLengths.size()];
+        for (int i = 0; i < bandBitLengths.length; i++) {
+            bandBitLengths[i] = bitLengths.get(i);
+        }
+        bandExponents = exponents.toArray(new BigInteger[0]);
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "keycheck-factor-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static void addBand(int bitLength, List<BigInteger> band, long packed,
+            List<Integer> bitLengths, List<BigInteger> exponents) {
+        if (packed != 1) {
+            band.add(BigInteger.valueOf(packed));
+        }
+        if (!band.isEmpty()) {
+            bitLengths.add(bitLength);
+            exponents.add(new ProductTree(band, false).getProduct());
+        }
+    }
+
+    public long getB1() {
+        return b1;
+    }
+
+    public long getB2() {
+        return b2;
+    }
+
+    /**
+     * Finds bit lengths of the largest factors of p-1 or p+1 for given
+     * primes. The smooth part of each number, the product of all its factors
+     * under the trial division bound, must be given.
+     *
+     * @param plusOne whether to analyse p+1 instead of p-1
+     * @return bit lengths of the largest factors, {@link #UNRESOLVED} or
+     * {@link #TIMED_OUT}
+     */
+    public int[] largestFactorBitLengths(List<BigInteger> primes, List<BigInteger> smoothParts,
+            boolean plusOne) {
+        List<Future<Integer>> results = new ArrayList<>(primes.size());
+        for (int i = 0; i < primes.size(); i++) {
+            BigInteger prime = primes.get(i);
+            BigInteger smoothPart = smoothParts.get(i);
+            results.add(executor.submit(() -> analyse(prime, smoothPart, plusOne)));
+        }
+        int[] bitLengths = new int[results.size()];
+        try {
+            for (int i = 0; i < bitLengths.length; i++) {
+                bitLengths[i] = results.get(i).get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while analysing factors", ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Factor analysis failed", ex.getCause());
+        }
+        return bitLengths;
+    }
+
+    private int analyse(BigInteger prime, BigInteger smoothPart, boolean plusOne) {
+        long deadline = System.nanoTime() + timeBudget;
+        BigInteger trace;
+        if (plusOne) {
+            trace = lucas(initialTrace(prime), smoothPart, prime, deadline);
+            for (int i = 0; i < bandExponents.length && trace != null; i++) {
+                trace = lucas(trace, bandExponents[i], prime, deadline);
+                if (TWO.equals(trace)) {
+                    return bandBitLengths[i];
+                }
+            }
+        } else {
+            BigInteger element = THREE.modPow(smoothPart, prime);
+            for (int i = 0; i < bandExponents.length; i++) {
+                if (System.nanoTime() > deadline) {
+                    return TIMED_OUT;
+                }
+                element = element.modPow(bandExponents[i], prime);
+                if (element.equals(BigInteger.ONE)) {
+                    return bandBitLengths[i];
+                }
+            }
+            trace = element.add(element.modInverse(prime)).mod(prime);
+        }
+        if (trace == null) {
+            return TIMED_OUT;
+        }
+        return stage2(trace, prime, deadline);
+    }
+
+    /**
+     * @return trace of a norm one element of GF(p^2) not in GF(p)
+     */
+    private static BigInteger initialTrace(BigInteger prime) {
+        int d = 2;
+        while (legendre(d, prime) != -1) {
+            d++;
+        }
+        // (1 - sqrt(d)) / (1 + sqrt(d)) has trace 2 (1 + d) / (1 - d)
+        BigInteger dValue = BigInteger.valueOf(d);
+        return TWO.multiply(BigInteger.ONE.add(dValue))
+                .multiply(BigInteger.ONE.subtract(dValue).modInverse(prime)).mod(prime);
+    }
+
+    /**
+     * Searches for k in (B1, B2] with V_k = 2 as V_(md) = V_j for k = md +- j.
+     */
+    private int stage2(BigInteger trace, BigInteger prime, long deadline) {
+        if (b2 <= b1) {
+            return UNRESOLVED;
+        }
+        int d = (int) Math.min(Math.sqrt(b2 - b1), Integer.MAX_VALUE / 2) & ~1;
+        d = Math.max(d, 2);
+        Map<BigInteger, Integer> babySteps = new HashMap<>(d);
+        BigInteger previous = TWO;
+        BigInteger current = trace;
+        for (int j = 1; j <= d / 2; j++) {
+            babySteps.put(current, j);
+            BigInteger next = current.multiply(trace).subtract(previous).mod(prime);
+            previous = current;
+            current = next;
+        }
+        babySteps.put(TWO, 0);
+        BigInteger giantStep = lucas(trace, BigInteger.valueOf(d), prime, deadline);
+        long m = b1 / d;
+        BigInteger giant = lucas(trace, BigInteger.valueOf(m * d), prime, deadline);
+        BigInteger previousGiant = lucas(trace, BigInteger.valueOf(Math.abs(m - 1) * d), prime,
+                deadline);
+        if (giantStep == null || giant == null || previousGiant == null) {
+            return TIMED_OUT;
+        }
+        for (long steps = 0; m * d - d / 2 <= b2; m++, steps++) {
+            if (steps % DEADLINE_CHECK_INTERVAL == 0 && System.nanoTime() > deadline) {
+                return TIMED_OUT;
+            }
+            Integer j = babySteps.get(giant);
+            if (j != null) {
+                for (long k : new long[]{m * d - j, m * d + j}) {
+                    long factor = largestPrimeFactor(k);
+                    if (k <= b2 && factor > b1
+                            && TWO.equals(lucas(trace, BigInteger.valueOf(k), prime, Long.MAX_VALUE))) {
+                        return 64 - Long.numberOfLeadingZeros(factor);
+                    }
+                }
+            }
+            BigInteger next = giant.multiply(giantStep).subtract(previousGiant).mod(prime);
+            previousGiant = giant;
+            giant = next;
+        }
+        return UNRESOLVED;
+    }
+
+    /**
+     * Computes the Lucas sequence V_k(P) mod p by the binary ladder.
+     *
+     * @return the value or null if the deadline passed
+     */
+    private static BigInteger lucas(BigInteger trace, BigInteger k, BigInteger prime,
+            long deadline) {
+        BigInteger v0 = TWO;
+        BigInteger v1 = trace;
+        for (int i = k.bitLength() - 1; i >= 0; i--) {
+            if (i % DEADLINE_CHECK_INTERVAL == 0 && System.nanoTime() > deadline) {
+                return null;
+            }
+            if (k.testBit(i)) {
+                v0 = v0.multiply(v1).subtract(trace).mod(prime);
+                v1 = v1.multiply(v1).subtract(TWO).mod(prime);
+            } else {
+                v1 = v0.multiply(v1).subtract(trace).mod(prime);
+                v0 = v0.multiply(v0).subtract(TWO).mod(prime);
+            }
+        }
+        return v0;
+    }
+
+    private static long largestPrimeFactor(long n) {
+        long largest = 1;
+        for (long i = 2; i * i <= n; i++) {
+            while (n % i == 0) {
+                n /= i;
+                largest = i;
+            }
+        }
+        return n > 1 ? n : largest;
+    }
+
+    /**
+     * @return Legendre symbol (d/p) for small positive d and odd prime p
+     */
+    private static int legendre(int d, BigInteger prime) {
+        int result = 1;
+        int primeMod8 = prime.intValue() & 7;
+        while (d % 2 == 0) {
+            d /= 2;
+            if (primeMod8 == 3 || primeMod8 == 5) {
+                result = -result;
+            }
+        }
+        if (d % 4 == 3 && primeMod8 % 4 == 3) {
+            result = -result;
+        }
+        return result * jacobi(prime.mod(BigInteger.valueOf(d)).longValue(), d);
+    }
+
+    private static int jacobi(long a, long n) {
+        int result = 1;
+        a %= n;
+        while (a != 0) {
+            while (a % 2 == 0) {
+                a /= 2;
+                if (n % 8 == 3 || n % 8 == 5) {
+                    result = -result;
+                }
+            }
+            long swap = a;
+            a = n;
+            n = swap;
+            if (a % 4 == 3 && n % 4 == 3) {
+                result = -result;
+            }
+            a %= n;
+        }
+        return n == 1 ? result : 0;
+    }
+
+    private interface PrimeConsumer {
+        void accept(long prime);
+    }
+
+    /**
+     * Segmented sieve of Eratosthenes over [from, to).
+     */
+    private static void forEachPrime(long from, long to, PrimeConsumer consumer) {
+        int sqrt = (int) Math.sqrt(to) + 1;
+        boolean[] isComposite = new boolean[sqrt + 1];
+        List<Integer> basePrimes = new ArrayList<>();
+        for (int i = 2; i <= sqrt; i++) {
+            if (!isComposite[i]) {
+                basePrimes.add(i);
+                for (long j = (long) i * i; j <= sqrt; j += i) {
+                    isComposite[(int) j] = true;
+                }
+            }
+        }
+        boolean[] segment = new boolean[SIEVE_SEGMENT];
+        for (long start = Math.max(from, 2); start < to; start += SIEVE_SEGMENT) {
+            int length = (int) Math.min(SIEVE_SEGMENT, to - start);
+            Arrays.fill(segment, 0, length, false);
+            for (int prime : basePrimes) {
+                long first = Math.max((long) prime * prime, (start + prime - 1) / prime * prime);
+                for (long j = first; j < start + length; j += prime) {
+                    segment[(int) (j - start)] = true;
+                }
+            }
+            for (int i = 0; i < length; i++) {
+                if (!segment[i]) {
+                    consumer.accept(start + i);
+                }
+            }
+        }
+    }
+}
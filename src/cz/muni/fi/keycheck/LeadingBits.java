@@ -0,0 +1,50 @@
+package cz.muni.fi.keycheck;
+
+import java.math.BigInteger;
+
+/**
+ * Most significant bits of a nonnegative number. The leading 63 bits are
+ * read once by set(), any top bits or leading bytes are then taken from them
+ * in primitive arithmetic, instead of shifting the number for each of them.
+ * An instance is reused for numbers of one stats instance, so it is not
+ * thread safe.
+ *
+ * @author David Formanek
+ */
+class LeadingBits {
+
+    private static final int WINDOW = Long.SIZE - 1;
+
+    private long window;
+    private int bitLength;
+
+    public void set(BigInteger n) {
+        bitLength = n.bitLength();
+        window = bitLength > WINDOW ? n.shiftRight(bitLength - WINDOW).longValue()
+                : n.longValue() << (WINDOW - bitLength);
+    }
+
+    public int getBitLength() {
+        return bitLength;
+    }
+
+    /**
+     * @param count count of bits, at most 31
+     * @return the most significant bits, padded by zeros for shorter numbers
+     */
+    public int getTop(int count) {
+        return (int) (window >>> (WINDOW - count));
+    }
+
+    /**
+     * Bytes are aligned to the least significant bit, so the most
+     * significant byte may be partial.
+     *
+     * @param index index of the byte from the most significant one, at most 6
+     */
+    public int getByte(int index) {
+        int shift = (bitLength - 1) / Byte.SIZE * Byte.SIZE - Byte.SIZE * index
+                - bitLength + WINDOW;
+        return (int) (window >>> shift) & 0xff;
+    }
+}
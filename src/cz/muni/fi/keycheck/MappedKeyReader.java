@@ -0,0 +1,172 @@
+package cz.muni.fi.keycheck;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+
+/**
+ * Reads keys from a region of a memory mapped key file. The file is mapped
+ * in windows, so files larger than the maximal mapping size are supported.
+ * A file can be split into regions starting at public key records, which
+ * can be read by several readers at the same time.
+ *
+ * @author David Formanek
+ */
+class MappedKeyReader implements KeySource {
+
+    private static final long WINDOW_SIZE = 1L << 28;
+    private static final int SCAN_BUFFER_SIZE = 1 << 16;
+    private static final byte[] RECORD_START = {'P', 'U', 'B', 'L', ':'};
+
+    private final FileChannel channel;
+    private final long end;
+    private final KeyParser parser;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+    private long keyEnd;
+    private byte[] line = new byte[4096];
+
+    public MappedKeyReader(Path path, Set<KeyField> fields) throws IOException {
+        this(path, 0, Long.MAX_VALUE, fields);
+    }
+
+    /**
+     * Reads keys from the region [start, end) of the file, the region should
+     * start at the beginning of a public key record.
+     */
+    public MappedKeyReader(Path path, long start, long end, Set<KeyField> fields)
+            throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.end = Math.min(end, channel.size());
+        parser = new KeyParser(path.toString(), fields);
+        position = start;
+        keyEnd = start;
+    }
+
+    @Override
+    public Params next() throws IOException {
+        while (position < end) {
+            long lineEnd = findLineEnd();
+            int length = (int) (lineEnd - position);
+            if (length > line.length) {
+                line = new byte[Math.max(length, 2 * line.length)];
+            }
+            window.get((int) (position - windowStart), line, 0, length);
+            long lineStart = position;
+            position = lineEnd + 1;
+            Params params = parser.parseLine(line, 0, length, lineStart);
+            if (params != null) {
+                keyEnd = position;
+                return params;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public long getOffset() {
+        return keyEnd;
+    }
+
+    private long findLineEnd() throws IOException {
+        if (window == null || position >= windowStart + window.limit()) {
+            map(position);
+        }
+        for (;;) {
+            for (int i = (int) (position - windowStart); i < window.limit(); i++) {
+                byte b = window.get(i);
+                if (b == '\n' || b == '\r') {
+                    return windowStart + i;
+                }
+            }
+            long windowEnd = windowStart + window.limit();
+            if (windowEnd >= end) {
+                return end;
+            }
+            if (windowStart == position) {
+                throw new IOException("Line at offset " + position + " is too long");
+            }
+            map(position);
+        }
+    }
+
+    private void map(long start) throws IOException {
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                Math.min(WINDOW_SIZE, end - start));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Splits the file into at most given count of regions of similar size,
+     * each region except the first one starts with a public key record.
+     *
+     * @return region boundaries, region i is [boundaries[i], boundaries[i + 1])
+     */
+    public static long[] split(Path path, int count) throws IOException {
+        return split(path, 0, count);
+    }
+
+    /**
+     * Splits the rest of the file from the start offset, which should be the
+     * beginning of a public key record.
+     */
+    public static long[] split(Path path, long start, int count) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long[] boundaries = new long[count + 1];
+            boundaries[0] = Math.min(start, size);
+            int regions = 0;
+            for (int i = 1; i < count; i++) {
+                long boundary = findRecordStart(channel,
+                        boundaries[0] + i * ((size - boundaries[0]) / count));
+                if (boundary > boundaries[regions] && boundary < size) {
+                    boundaries[++regions] = boundary;
+                }
+            }
+            boundaries[++regions] = size;
+            long[] result = new long[regions + 1];
+            System.arraycopy(boundaries, 0, result, 0, regions + 1);
+            return result;
+        }
+    }
+
+    private static long findRecordStart(FileChannel channel, long from) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        // the byte preceding the offset tells whether a line starts there
+        long offset = Math.max(from - 1, 0);
+        byte previous = '\n';
+        int matched = -1;
+        for (;;) {
+            buffer.clear();
+            int read = channel.read(buffer, offset);
+            if (read <= 0) {
+                return channel.size();
+            }
+            for (int i = 0; i < read; i++, offset++) {
+                byte b = buffer.get(i);
+                if (matched >= 0 && b == RECORD_START[matched]) {
+                    matched++;
+                    if (matched == RECORD_START.length) {
+                        return offset - RECORD_START.length + 1;
+                    }
+                } else if ((previous == '\n' || previous == '\r') && offset >= from
+                        && b == RECORD_START[0]) {
+                    matched = 1;
+                } else {
+                    matched = -1;
+                }
+                previous = b;
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package cz.muni.fi.keycheck;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Live metrics of a running analysis: processed keys and bytes, input errors,
+ * sampled process() times of each stats and heap usage. The metrics are
+ * published as an MXBean and optionally served in the Prometheus text format
+ * by an HTTP server listening on the loopback interface.
+ *
+ * @author David Formanek
+ */
+class Metrics implements MetricsMXBean {
+
+    private static final String OBJECT_NAME = "cz.muni.fi.keycheck:type=Metrics";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private final LongSupplier keyCount;
+    private final long startTime = System.nanoTime();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder inputErrorCount = new LongAdder();
+    private final Map<String, LatencyHistogram> latencies = new LinkedHashMap<>();
+    private HttpServer server;
+
+    /**
+     * @param keyCount supplier of the count of keys processed so far
+     */
+    public Metrics(LongSupplier keyCount) {
+        this.keyCount = keyCount;
+    }
+
+    /**
+     * @return histogram of process() times of the stats of given name,
+     * shared by all instances of the stats
+     */
+    public LatencyHistogram getLatency(String stats) {
+        synchronized (latencies) {
+            return latencies.computeIfAbsent(stats, name -> new LatencyHistogram());
+        }
+    }
+
+    public void addBytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    public void addInputError() {
+        inputErrorCount.increment();
+    }
+
+    @Override
+    public long getKeyCount() {
+        return keyCount.getAsLong();
+    }
+
+    /**
+     * @return average rate since the start
+     */
+    @Override
+    public double getKeysPerSecond() {
+        return getKeyCount() / ((System.nanoTime() - startTime) / 1e9);
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getInputErrorCount() {
+        return inputErrorCount.sum();
+    }
+
+    @Override
+    public Map<String, Double> getMedianProcessTimes() {
+        return getProcessTimes(0.5);
+    }
+
+    @Override
+    public Map<String, Double> getTailProcessTimes() {
+        return getProcessTimes(0.99);
+    }
+
+    private Map<String, Double> getProcessTimes(double fraction) {
+        Map<String, Double> times = new LinkedHashMap<>();
+        synchronized (latencies) {
+            for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+                times.put(entry.getKey(), entry.getValue().getPercentile(fraction));
+            }
+        }
+        return times;
+    }
+
+    /**
+     * Registers the metrics to the platform MBean server.
+     */
+    public void register() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                new ObjectName(OBJECT_NAME));
+    }
+
+    /**
+     * Starts serving the metrics at http://localhost:port/metrics.
+     */
+    public void startServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Stops the HTTP server and unregisters the MBean if registered.
+     */
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (JMException ex) {
+            // not registered
+        }
+    }
+
+    /**
+     * @return the metrics in the Prometheus text exposition format
+     */
+    public String toPrometheus() {
+        StringBuilder text = new StringBuilder();
+        appendMetric(text, "keycheck_keys_total", "counter", "Keys processed",
+                getKeyCount());
+        appendMetric(text, "keycheck_keys_per_second", "gauge",
+                "Average rate of processed keys since the start", getKeysPerSecond());
+        appendMetric(text, "keycheck_read_bytes_total", "counter", "Bytes of text key files read",
+                getBytesRead());
+        appendMetric(text, "keycheck_input_errors_total", "counter",
+                "Key files whose analysis stopped on an input error", getInputErrorCount());
+        text.append("# HELP keycheck_process_seconds Sampled time of process() of stats\n")
+                .append("# TYPE keycheck_process_seconds summary\n");
+        synchronized (latencies) {
+            for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+                String stats = "stats=\"" + entry.getKey() + "\"";
+                LatencyHistogram latency = entry.getValue();
+                for (double quantile : QUANTILES) {
+                    appendSample(text, "keycheck_process_seconds{" + stats + ",quantile=\""
+                            + quantile + "\"}", latency.getPercentile(quantile) / 1e9);
+                }
+                appendSample(text, "keycheck_process_seconds_sum{" + stats + "}",
+                        latency.getSum() / 1e9);
+                appendSample(text, "keycheck_process_seconds_count{" + stats + "}",
+                        latency.getCount());
+            }
+        }
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        appendMetric(text, "keycheck_heap_used_bytes", "gauge", "Used heap", heap.getUsed());
+        appendMetric(text, "keycheck_heap_committed_bytes", "gauge", "Committed heap",
+                heap.getCommitted());
+        appendMetric(text, "keycheck_heap_max_bytes", "gauge", "Maximal heap", heap.getMax());
+        long collectionCount = 0;
+        long collectionTime = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collectionCount += Math.max(collector.getCollectionCount(), 0);
+            collectionTime += Math.max(collector.getCollectionTime(), 0);
+        }
+        appendMetric(text, "keycheck_gc_collections_total", "counter", "Garbage collections",
+                collectionCount);
+        appendMetric(text, "keycheck_gc_seconds_total", "counter", "Time of garbage collections",
+                collectionTime / 1e3);
+        return text.toString();
+    }
+
+    private static void appendMetric(StringBuilder text, String name, String type, String help,
+            double value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        appendSample(text, name, value);
+    }
+
+    private static void appendSample(StringBuilder text, String name, double value) {
+        text.append(name).append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            text.append((long) value);
+        } else {
+            text.append(String.format(Locale.ROOT, "%.6g", value));
+        }
+        text.append('\n');
+    }
+}
@@ -0,0 +1,29 @@
+package cz.muni.fi.keycheck;
+
+import java.util.Map;
+
+/**
+ * Management interface of the analysis metrics, see Metrics.
+ *
+ * @author David Formanek
+ */
+public interface MetricsMXBean {
+
+    long getKeyCount();
+
+    double getKeysPerSecond();
+
+    long getBytesRead();
+
+    long getInputErrorCount();
+
+    /**
+     * @return median time of process() of each stats in nanoseconds
+     */
+    Map<String, Double> getMedianProcessTimes();
+
+    /**
+     * @return 99th percentile of process() time of each stats in nanoseconds
+     */
+    Map<String, Double> getTailProcessTimes();
+}
@@ -0,0 +1,186 @@
+package cz.muni.fi.keycheck;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Statistics computable from public keys only.
+ *
+ * @author David Formanek
+ */
+class ModulusStats implements Stats {
+
+    private static final int RADIX = 10;
+
+    private int bitsForInterval = 4;
+    private final FingerprintIndex moduli;
+    private final Findings findings;
+
+    private long keyCount = 0;
+    private long duplicitModulusCount = 0;
+    private long likelyDuplicitModulusCount = 0;
+    private final Histogram bitLengths = new Histogram();
+    private final Histogram intervalCounts;
+    private final Histogram mostSignificantBytes = new Histogram(256);
+    private final Histogram leastSignificantBytes = new Histogram(256);
+    private Map<BigInteger, Long> exponents = new HashMap<>();
+    private final LeadingBits leadingBits = new LeadingBits();
+
+    public ModulusStats(int bitsForInterval, FingerprintIndex moduli, Findings findings) {
+        this.bitsForInterval = bitsForInterval;
+        this.moduli = moduli;
+        this.findings = findings;
+        intervalCounts = new Histogram(1 << bitsForInterval);
+    }
+
+    @Override
+    public void process(Params params) {
+        BigInteger modulus = params.getModulus();
+        leadingBits.set(modulus);
+        bitLengths.add(leadingBits.getBitLength());
+        intervalCounts.add(leadingBits.getTop(bitsForInterval));
+        mostSignificantBytes.add(leadingBits.getByte(0));
+        leastSignificantBytes.add(modulus.intValue() & 0xff);
+        incrementMap(exponents, params.getExponent());
+        FingerprintIndex.Match match = moduli.add(modulus);
+        if (match == FingerprintIndex.Match.CONFIRMED) {
+            duplicitModulusCount++;
+            findings.add("duplicate-modulus", params, modulus,
+                    "Modulus " + modulus.toString(RADIX) + " is duplicit!");
+        } else if (match == FingerprintIndex.Match.UNCONFIRMED) {
+            likelyDuplicitModulusCount++;
+            findings.add("likely-duplicate-modulus", params, modulus,
+                    "Modulus " + modulus.toString(RADIX) + " is likely duplicit (fingerprint match)");
+        }
+        keyCount++;
+    }
+
+    private <T> void incrementMap(Map<T, Long> map, T value) {
+        map.merge(value, 1L, Long::sum);
+    }
+
+    @Override
+    public Set<KeyField> getRequiredFields() {
+        return EnumSet.of(KeyField.EXPONENT, KeyField.MODULUS);
+    }
+
+    @Override
+    public void merge(Stats other) {
+        ModulusStats stats = (ModulusStats) other;
+        keyCount += stats.keyCount;
+        duplicitModulusCount += stats.duplicitModulusCount;
+        likelyDuplicitModulusCount += stats.likelyDuplicitModulusCount;
+        if (stats.moduli != moduli) {
+            addMatches(moduli.addAll(stats.moduli));
+        }
+        bitLengths.merge(stats.bitLengths);
+        intervalCounts.merge(stats.intervalCounts);
+        mostSignificantBytes.merge(stats.mostSignificantBytes);
+        leastSignificantBytes.merge(stats.leastSignificantBytes);
+        mergeMap(exponents, stats.exponents);
+    }
+
+    private <T> void mergeMap(Map<T, Long> map, Map<T, Long> other) {
+        for (Map.Entry<T, Long> entry : other.entrySet()) {
+            map.merge(entry.getKey(), entry.getValue(), Long::sum);
+        }
+    }
+
+    @Override
+    public void save(DataOutput output) throws IOException {
+        output.writeLong(keyCount);
+        output.writeLong(duplicitModulusCount);
+        output.writeLong(likelyDuplicitModulusCount);
+        bitLengths.save(output);
+        intervalCounts.save(output);
+        mostSignificantBytes.save(output);
+        leastSignificantBytes.save(output);
+        output.writeInt(exponents.size());
+        for (Map.Entry<BigInteger, Long> entry : exponents.entrySet()) {
+            Checkpoint.writeNumber(output, entry.getKey());
+            output.writeLong(entry.getValue());
+        }
+        moduli.save(output);
+    }
+
+    @Override
+    public void load(DataInput input) throws IOException {
+        keyCount += input.readLong();
+        duplicitModulusCount += input.readLong();
+        likelyDuplicitModulusCount += input.readLong();
+        bitLengths.load(input);
+        intervalCounts.load(input);
+        mostSignificantBytes.load(input);
+        leastSignificantBytes.load(input);
+        int exponentCount = input.readInt();
+        for (int i = 0; i < exponentCount; i++) {
+            exponents.merge(Checkpoint.readNumber(input), input.readLong(), Long::sum);
+        }
+        addMatches(moduli.load(input));
+    }
+
+    private void addMatches(FingerprintIndex.Matches matches) {
+        duplicitModulusCount += matches.getConfirmed();
+        likelyDuplicitModulusCount += matches.getUnconfirmed();
+    }
+
+    @Override
+    public void report(ReportWriter writer) throws IOException {
+        writer.beginSection("modulus");
+        writer.value("keys", keyCount);
+        writer.counts("bit_lengths", bitLengths);
+        writer.counts("top_" + bitsForInterval + "_bits", intervalCounts);
+        writer.counts("most_significant_bytes", mostSignificantBytes);
+        writer.counts("least_significant_bytes", leastSignificantBytes);
+        Map<String, Long> exponentCounts = new LinkedHashMap<>();
+        for (Map.Entry<BigInteger, Long> entry : exponents.entrySet()) {
+            exponentCounts.put(entry.getKey().toString(RADIX), entry.getValue());
+        }
+        writer.counts("public_exponents", exponentCounts);
+        writer.value("duplicate_moduli", duplicitModulusCount);
+        writer.value("likely_duplicate_moduli", likelyDuplicitModulusCount);
+        writer.endSection();
+    }
+
+    @Override
+    public void print() {
+        if (keyCount == 0) {
+            return;
+        }
+        System.out.println("Distribution of modulus bitlengths");
+        printChart(bitLengths, false);
+        System.out.println("Distribution of top " + bitsForInterval + " bits of moduli");
+        printChart(intervalCounts, true);
+        System.out.println("Distribution of the most significant byte of moduli");
+        printChart(mostSignificantBytes, false);
+        System.out.println("Distribution of the least significant byte of moduli");
+        printChart(leastSignificantBytes, false);
+        System.out.println("Public exponents:");
+        for (Map.Entry<BigInteger, Long> entry : exponents.entrySet()) {
+            System.out.format("%s: %d (%.4f %%)\n", entry.getKey().toString(RADIX),
+                    entry.getValue(), 100 * entry.getValue() / (double) keyCount);
+        }
+        if (duplicitModulusCount == 0 && likelyDuplicitModulusCount == 0) {
+            System.out.println("All moduli are unique");
+        }
+        if (duplicitModulusCount > 0) {
+            System.out.println(duplicitModulusCount + " moduli are not unique");
+        }
+        if (likelyDuplicitModulusCount > 0) {
+            System.out.println(likelyDuplicitModulusCount + " moduli are likely not unique"
+                    + " (fingerprint match, not confirmed)");
+        }
+    }
+
+    private void printChart(Histogram histogram, boolean binary) {
+        histogram.printChart(histogram.getMin(), histogram.getMax(), keyCount, 300,
+                i -> binary ? Integer.toBinaryString(i) + ": " : String.format("%4d: ", i));
+    }
+}
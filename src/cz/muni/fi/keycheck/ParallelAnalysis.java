@@ -0,0 +1,418 @@
+package cz.muni.fi.keycheck;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+
+/**
+ * Analyses keys on several worker threads. Keys passed to process() are
+ * grouped into batches, each worker accumulates its batches into own stats
+ * created by the factory, flushes them at the end of input and the partial
+ * results are merged in finish().
+ * Stats depending on key order are computed for each batch separately and
+ * the batch results are merged in the order of the batches.
+ * <p>
+ * Keys can be also submitted by several threads through parts, e.g. regions
+ * of one file, in which case the key order is the order of part creation.
+ * Parts are created by the thread calling process().
+ * <p>
+ * The results can be saved between parts, when the workers are idle. Each
+ * worker writes its own stats, so saving does not merge or copy them.
+ * The merged stats of workers and the ordered stats are joined into the
+ * result by the given function, by default the groups are joined if both
+ * are grouped.
+ * <p>
+ * Derived key values served from the cache of Params are counted here, once
+ * per key after all stats processed it, and printed after the results.
+ *
+ * @author David Formanek
+ */
+class ParallelAnalysis implements Stats {
+
+    private static final Batch END_OF_INPUT = new Batch(-1, -1, new ArrayList<>());
+
+    private final Supplier<Stats> orderedFactory;
+    private final BinaryOperator<Stats> join;
+    private final int batchSize;
+    private final BlockingQueue<Batch> queue;
+    private final List<Worker> workers = new ArrayList<>();
+    private final Map<Long, Stats> pendingChunks = new TreeMap<>();
+    private final List<Part> parts = new ArrayList<>();
+    private final Stats orderedStats;
+    private final Set<KeyField> requiredFields = EnumSet.noneOf(KeyField.class);
+    private Part mainPart;
+    private int nextChunkPart = 0;
+    private long nextChunk = 0;
+    private long submittedBatchCount = 0;
+    private long completedBatchCount = 0;
+    private long loadedReusedValueCount = 0;
+    private Stats result;
+
+    public ParallelAnalysis(Supplier<Stats> factory, Supplier<Stats> orderedFactory,
+            int threads, int batchSize) {
+        this(factory, orderedFactory, ParallelAnalysis::join, threads, batchSize);
+    }
+
+    /**
+     * @param join combines the merged stats of workers with the ordered stats
+     * into the result
+     */
+    public ParallelAnalysis(Supplier<Stats> factory, Supplier<Stats> orderedFactory,
+            BinaryOperator<Stats> join, int threads, int batchSize) {
+        this.orderedFactory = orderedFactory;
+        this.join = join;
+        this.batchSize = batchSize;
+        orderedStats = orderedFactory.get();
+        requiredFields.addAll(orderedStats.getRequiredFields());
+        queue = new ArrayBlockingQueue<>(4 * threads);
+        for (int i = 0; i < threads; i++) {
+            Worker worker = new Worker(factory.get());
+            requiredFields.addAll(worker.stats.getRequiredFields());
+            worker.setName("keycheck-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    @Override
+    public void process(Params params) {
+        if (mainPart == null) {
+            mainPart = newPart();
+        }
+        mainPart.process(params);
+    }
+
+    /**
+     * Creates a part for submitting keys by another thread. Keys of the part
+     * follow the keys of previously created parts and keys passed to process()
+     * before.
+     */
+    public Part createPart() {
+        if (mainPart != null) {
+            mainPart.close();
+            mainPart = null;
+        }
+        return newPart();
+    }
+
+    private Part newPart() {
+        synchronized (pendingChunks) {
+            if (result != null) {
+                throw new IllegalStateException("Analysis already finished");
+            }
+            Part part = new Part(parts.size());
+            parts.add(part);
+            return part;
+        }
+    }
+
+    /**
+     * Waits for all submitted keys to be processed and merges the results
+     * of the workers.
+     */
+    public Stats finish() {
+        if (result != null) {
+            return result;
+        }
+        if (mainPart != null) {
+            mainPart.close();
+        }
+        synchronized (pendingChunks) {
+            for (Part part : parts) {
+                if (part.batchCount < 0) {
+                    throw new IllegalStateException("Part " + part.index + " not closed");
+                }
+            }
+        }
+        for (int i = 0; i < workers.size(); i++) {
+            put(END_OF_INPUT);
+        }
+        for (Worker worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for workers", ex);
+            }
+            if (worker.failure != null) {
+                throw new IllegalStateException("Worker failed", worker.failure);
+            }
+        }
+        Stats merged = workers.get(0).stats;
+        for (int i = 1; i < workers.size(); i++) {
+            merged.merge(workers.get(i).stats);
+        }
+        synchronized (pendingChunks) {
+            result = join.apply(merged, orderedStats);
+        }
+        return result;
+    }
+
+    private static Stats join(Stats stats, Stats orderedStats) {
+        if (stats instanceof GroupedStats && orderedStats instanceof GroupedStats) {
+            return GroupedStats.join((GroupedStats) stats, (GroupedStats) orderedStats);
+        }
+        StatsContainer container = new StatsContainer();
+        container.add(stats);
+        container.add(orderedStats);
+        return container;
+    }
+
+    private void put(Batch keys) {
+        try {
+            queue.put(keys);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while submitting keys", ex);
+        }
+    }
+
+    private void addChunk(int part, long index, Stats chunk) {
+        synchronized (pendingChunks) {
+            pendingChunks.put(chunkKey(part, index), chunk);
+            mergeChunks();
+        }
+    }
+
+    private void mergeChunks() {
+        while (nextChunkPart < parts.size()) {
+            Stats next = pendingChunks.remove(chunkKey(nextChunkPart, nextChunk));
+            if (next != null) {
+                orderedStats.merge(next);
+                nextChunk++;
+            } else if (parts.get(nextChunkPart).batchCount == nextChunk) {
+                nextChunkPart++;
+                nextChunk = 0;
+            } else {
+                break;
+            }
+        }
+    }
+
+    private static long chunkKey(int part, long index) {
+        return (long) part << 40 | index;
+    }
+
+    /**
+     * Waits until all keys submitted so far are processed and writes the
+     * results of each worker. All parts created by createPart() must be
+     * closed.
+     */
+    @Override
+    public void save(DataOutput output) throws IOException {
+        if (mainPart != null) {
+            mainPart.close();
+            mainPart = null;
+        }
+        synchronized (pendingChunks) {
+            for (Part part : parts) {
+                if (part.batchCount < 0) {
+                    throw new IllegalStateException("Part " + part.index + " not closed");
+                }
+            }
+            while (completedBatchCount < submittedBatchCount) {
+                try {
+                    pendingChunks.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for workers", ex);
+                }
+            }
+            for (Worker worker : workers) {
+                if (worker.failure != null) {
+                    throw new IllegalStateException("Worker failed", worker.failure);
+                }
+            }
+            output.writeInt(workers.size());
+            for (Worker worker : workers) {
+                worker.stats.save(output);
+            }
+            orderedStats.save(output);
+            output.writeLong(getReusedValueCount());
+        }
+    }
+
+    /**
+     * Restores saved results, before any key is submitted. The results of
+     * saved workers are distributed among the workers, whose count may
+     * differ.
+     */
+    @Override
+    public void load(DataInput input) throws IOException {
+        synchronized (pendingChunks) {
+            if (!parts.isEmpty()) {
+                throw new IllegalStateException("Results can be loaded only before processing");
+            }
+            int savedWorkerCount = input.readInt();
+            for (int i = 0; i < savedWorkerCount; i++) {
+                workers.get(i % workers.size()).stats.load(input);
+            }
+            orderedStats.load(input);
+            loadedReusedValueCount += input.readLong();
+        }
+    }
+
+    private long getReusedValueCount() {
+        long count = loadedReusedValueCount;
+        for (Worker worker : workers) {
+            count += worker.reusedValueCount;
+        }
+        return count;
+    }
+
+    @Override
+    public void print() {
+        finish().print();
+        long reusedValueCount = getReusedValueCount();
+        if (reusedValueCount > 0) {
+            System.out.println("Derived key values were reused " + reusedValueCount + " times");
+        }
+    }
+
+    @Override
+    public void report(ReportWriter writer) throws IOException {
+        finish().report(writer);
+    }
+
+    @Override
+    public Set<KeyField> getRequiredFields() {
+        return EnumSet.copyOf(requiredFields);
+    }
+
+    /**
+     * Finishes both analyses and merges the results of the other one into
+     * the results of this one.
+     */
+    @Override
+    public void merge(Stats other) {
+        ParallelAnalysis analysis = (ParallelAnalysis) other;
+        finish().merge(analysis.finish());
+        loadedReusedValueCount += analysis.getReusedValueCount();
+    }
+
+    /**
+     * Sequence of keys submitted by one thread.
+     */
+    public class Part {
+
+        private final int index;
+        private long batchCount = -1;
+        private long submittedBatches = 0;
+        private List<Params> batch = new ArrayList<>(batchSize);
+
+        private Part(int index) {
+            this.index = index;
+        }
+
+        public void process(Params params) {
+            if (batch == null) {
+                throw new IllegalStateException("Part " + index + " already closed");
+            }
+            batch.add(params);
+            if (batch.size() == batchSize) {
+                submitBatch();
+            }
+        }
+
+        private void submitBatch() {
+            synchronized (pendingChunks) {
+                submittedBatchCount++;
+            }
+            put(new Batch(index, submittedBatches++, batch));
+            batch = new ArrayList<>(batchSize);
+        }
+
+        /**
+         * Submits the remaining keys, no more keys can be added to the part.
+         */
+        public void close() {
+            if (batch == null) {
+                return;
+            }
+            if (!batch.isEmpty()) {
+                submitBatch();
+            }
+            batch = null;
+            synchronized (pendingChunks) {
+                batchCount = submittedBatches;
+                mergeChunks();
+            }
+        }
+    }
+
+    private static class Batch {
+
+        private final int part;
+        private final long index;
+        private final List<Params> keys;
+
+        Batch(int part, long index, List<Params> keys) {
+            this.part = part;
+            this.index = index;
+            this.keys = keys;
+        }
+    }
+
+    private class Worker extends Thread {
+
+        private final Stats stats;
+        private volatile Throwable failure;
+        private long reusedValueCount = 0;
+
+        Worker(Stats stats) {
+            this.stats = stats;
+        }
+
+        @Override
+        public void run() {
+            for (;;) {
+                Batch batch;
+                try {
+                    batch = queue.take();
+                } catch (InterruptedException ex) {
+                    failure = ex;
+                    return;
+                }
+                if (batch == END_OF_INPUT) {
+                    if (failure == null) {
+                        try {
+                            stats.flush();
+                        } catch (RuntimeException | Error ex) {
+                            failure = ex;
+                        }
+                    }
+                    return;
+                }
+                if (failure == null) {
+                    try {
+                        Stats chunk = orderedFactory.get();
+                        for (Params params : batch.keys) {
+                            stats.process(params);
+                            chunk.process(params);
+                            reusedValueCount += params.getReusedValueCount();
+                        }
+                        addChunk(batch.part, batch.index, chunk);
+                    } catch (RuntimeException | Error ex) {
+                        failure = ex;
+                    }
+                }
+                // after a failure keep draining the queue so that the producer is not blocked
+                synchronized (pendingChunks) {
+                    completedBatchCount++;
+                    pendingChunks.notifyAll();
+                }
+            }
+        }
+    }
+}
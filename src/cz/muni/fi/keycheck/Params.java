@@ -3,18 +3,25 @@ package cz.muni.fi.keycheck;
 import java.math.BigInteger;
 
 /**
+ * Values of one key. Values derived from the key are computed at most once,
+ * when first requested, and shared by all stats processing the key.
  *
  * @author David Formanek
  */
 class Params {
 
-    private static final int RADIX = 10;
-    private static final int PRIME_CERTAINITY = 40;
-
     private BigInteger exponent;
     private BigInteger modulus;
     private BigInteger p;
     private BigInteger q;
+    private String source;
+    private long position;
+
+    private BigInteger phi;
+    private BigInteger privateExponent;
+    private BigInteger primeDifference;
+    private Integer primeComparison;
+    private int reusedValueCount = 0;
 
     public BigInteger getExponent() {
         return exponent;
@@ -22,6 +29,7 @@ class Params {
 
     public void setExponent(BigInteger exponent) {
         this.exponent = exponent;
+        privateExponent = null;
     }
 
     public BigInteger getModulus() {
@@ -30,6 +38,8 @@ class Params {
 
     public void setModulus(BigInteger modulus) {
         this.modulus = modulus;
+        phi = null;
+        privateExponent = null;
     }
 
     public BigInteger getP() {
@@ -38,6 +48,7 @@ class Params {
 
     public void setP(BigInteger p) {
         this.p = p;
+        clearFactorValues();
     }
 
     public BigInteger getQ() {
@@ -46,37 +57,79 @@ class Params {
 
     public void setQ(BigInteger q) {
         this.q = q;
+        clearFactorValues();
     }
 
-    public boolean isValid() {
-        boolean isValid = true;
-        if (!p.isProbablePrime(PRIME_CERTAINITY)) {
-            isValid = false;
-            System.out.println(p.toString(RADIX) + " is not a prime");
-        }
-        if (!q.isProbablePrime(PRIME_CERTAINITY)) {
-            isValid = false;
-            System.out.println(q.toString(RADIX) + " is not a prime");
-        }
-        if (!p.multiply(q).equals(modulus)) {
-            isValid = false;
-            System.out.println("Modulus " + modulus.toString(RADIX) + " has not factors p a q");
+    private void clearFactorValues() {
+        phi = null;
+        privateExponent = null;
+        primeDifference = null;
+        primeComparison = null;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public void setSource(String source) {
+        this.source = source;
+    }
+
+    /**
+     * @return position of the key in its source, for key files the offset
+     * of the public key record
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    public void setPosition(long position) {
+        this.position = position;
+    }
+
+    public BigInteger getPhi() {
+        if (phi == null) {
+            phi = modulus.subtract(p).subtract(q).add(BigInteger.ONE);
+        } else {
+            reusedValueCount++;
         }
-        BigInteger phi = modulus.subtract(p).subtract(q).add(BigInteger.ONE);
-        if (!phi.gcd(exponent).equals(BigInteger.ONE)) {
-            isValid = false;
-            System.out.println("Exponent " + exponent.toString(RADIX)
-                    + " is not coprime to phi of " + modulus.toString(RADIX));
+        return phi;
+    }
+
+    public BigInteger getPrivateExponent() {
+        if (privateExponent == null) {
+            privateExponent = exponent.modInverse(getPhi());
+        } else {
+            reusedValueCount++;
         }
-        return isValid;
+        return privateExponent;
     }
 
     public BigInteger getPrimeDifference() {
-        return p.subtract(q).abs();
+        if (primeDifference == null) {
+            primeDifference = p.subtract(q).abs();
+        } else {
+            reusedValueCount++;
+        }
+        return primeDifference;
     }
 
-    public BigInteger getPrivateExponent() {
-        BigInteger phi = modulus.subtract(p).subtract(q).add(BigInteger.ONE);
-        return exponent.modInverse(phi);
+    /**
+     * @return result of p.compareTo(q)
+     */
+    public int getPrimeComparison() {
+        if (primeComparison == null) {
+            primeComparison = p.compareTo(q);
+        } else {
+            reusedValueCount++;
+        }
+        return primeComparison;
+    }
+
+    /**
+     * @return count of requests for derived values served without computation
+     */
+    public int getReusedValueCount() {
+        return reusedValueCount;
     }
 }
@@ -0,0 +1,129 @@
+package cz.muni.fi.keycheck;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+/**
+ * Ways of generating primes of synthetic keys.
+ *
+ * @author David Formanek
+ */
+enum PrimeStrategy {
+
+    /**
+     * Independent uniformly random candidates until one is a prime.
+     */
+    RANDOM {
+        @Override
+        public BigInteger generate(int bits, int certainity, Random random) {
+            for (;;) {
+                BigInteger candidate = randomOdd(bits, random);
+                if (!SmallPrimes.hasFactor(candidate) && candidate.isProbablePrime(certainity)) {
+                    return candidate;
+                }
+            }
+        }
+    },
+    /**
+     * The first prime following a random start. Faster than RANDOM, but
+     * primes following large gaps are more likely, which skews their
+     * distribution.
+     */
+    INCREMENTAL {
+        @Override
+        public BigInteger generate(int bits, int certainity, Random random) {
+            return nextPrime(randomOdd(bits, random), bits, certainity, random, 0);
+        }
+    },
+    /**
+     * Gordon's strong primes, p-1 has a large factor r, r-1 has a large
+     * factor t and p+1 has a large factor s.
+     */
+    STRONG {
+        @Override
+        public BigInteger generate(int bits, int certainity, Random random) {
+            BigInteger s = RANDOM.generate(bits / 2 - bits / 16, certainity, random);
+            BigInteger t = RANDOM.generate(bits / 2 - bits / 8, certainity, random);
+            BigInteger twoT = t.shiftLeft(1);
+            BigInteger r = twoT.add(BigInteger.ONE);
+            while (!r.isProbablePrime(certainity)) {
+                r = r.add(twoT);
+            }
+            // p0 = 1 mod r and p0 = -1 mod s
+            BigInteger p0 = s.modPow(r.subtract(TWO), r).multiply(s).shiftLeft(1)
+                    .subtract(BigInteger.ONE);
+            BigInteger step = r.multiply(s).shiftLeft(1);
+            for (;;) {
+                BigInteger start = randomOdd(bits, random);
+                BigInteger j = start.subtract(p0).divide(step).add(BigInteger.ONE);
+                for (BigInteger p = p0.add(j.multiply(step)); p.bitLength() == bits;
+                        p = p.add(step)) {
+                    if (!SmallPrimes.hasFactor(p) && p.isProbablePrime(certainity)) {
+                        return p;
+                    }
+                }
+            }
+        }
+    },
+    /**
+     * Incremental search from a start with the top four bits set, mimicking
+     * generators of some smartcards.
+     */
+    BIASED {
+        @Override
+        public BigInteger generate(int bits, int certainity, Random random) {
+            return nextPrime(randomOdd(bits, random), bits, certainity, random, 4);
+        }
+    };
+
+    private static final BigInteger TWO = BigInteger.valueOf(2);
+    // far above prime gaps of practical sizes, a longer search starts again
+    private static final int MAX_SEARCH_DISTANCE = 1 << 24;
+
+    /**
+     * @param certainity certainity of the probable prime test
+     * @return a prime of given bit length
+     */
+    public abstract BigInteger generate(int bits, int certainity, Random random);
+
+    private static BigInteger randomOdd(int bits, Random random) {
+        return new BigInteger(bits, random).setBit(bits - 1).setBit(0);
+    }
+
+    /**
+     * Finds the first prime not less than start after setting given count of
+     * top bits, sieving the candidates by small primes in int arithmetic.
+     * A new random start is taken if no prime follows closely enough.
+     */
+    private static BigInteger nextPrime(BigInteger start, int bits, int certainity,
+            Random random, int topBits) {
+        for (;;) {
+            for (int i = 1; i <= topBits; i++) {
+                start = start.setBit(bits - i);
+            }
+            int[] residues = new int[SmallPrimes.count()];
+            SmallPrimes.residues(start, residues);
+            for (int delta = 0; delta < MAX_SEARCH_DISTANCE; delta += 2) {
+                if (isCoprime(residues, delta)) {
+                    BigInteger candidate = start.add(BigInteger.valueOf(delta));
+                    if (candidate.bitLength() > bits) {
+                        break;
+                    }
+                    if (candidate.isProbablePrime(certainity)) {
+                        return candidate;
+                    }
+                }
+            }
+            start = randomOdd(bits, random);
+        }
+    }
+
+    private static boolean isCoprime(int[] residues, int delta) {
+        for (int i = 0; i < residues.length; i++) {
+            if ((residues[i] + delta) % SmallPrimes.get(i) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
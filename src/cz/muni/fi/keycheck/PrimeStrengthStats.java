@@ -1,11 +1,13 @@
 package cz.muni.fi.keycheck;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.EnumSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
 /**
  *
@@ -13,105 +15,255 @@ import java.util.Map;
  */
 public class PrimeStrengthStats implements Stats {
 
+    private static final int BATCH_SIZE = 256;
+
     private long keyCount = 0;
     private int smoothBound;
-    private List<BigInteger> primesUnderBound;
+    private TrialDivision trialDivision;
+    private LargestFactorAnalysis largestFactorAnalysis;
+    private List<BigInteger> pendingPrimes = new ArrayList<>(BATCH_SIZE);
+    private List<BigInteger> pendingNumbers = new ArrayList<>(BATCH_SIZE);
+    private List<Params> pendingKeys = new ArrayList<>(BATCH_SIZE);
+    private final Findings findings;
     private int primeCertainity;
     private long smoothNumberCount = 0;
     private long factoredNumberCount = 0;
-    private Map<Integer, Long> smallFactorCounts = new HashMap<>();
-    private Map<Integer, Long> smoothPartLengths = new HashMap<>();
+    private final Histogram smallFactorCounts = new Histogram(64);
+    private final Histogram smoothPartLengths = new Histogram();
+    private final Histogram largestFactorLengths = new Histogram();
+    private final Histogram largestFactorLengthsPlusOne = new Histogram();
 
-    public PrimeStrengthStats(int smoothBound, int primeCertainity) {
-        this.smoothBound = smoothBound;
-        primesUnderBound = getPrimesUnder(smoothBound);
+    /**
+     * @param largestFactorAnalysis analysis of the largest factors of p-1 and
+     * p+1 or null if it should be skipped
+     * @param findings sink of the primes with smooth p-1 or p+1
+     */
+    public PrimeStrengthStats(TrialDivision trialDivision,
+            LargestFactorAnalysis largestFactorAnalysis, int primeCertainity, Findings findings) {
+        this.trialDivision = trialDivision;
+        this.findings = findings;
+        this.largestFactorAnalysis = largestFactorAnalysis;
+        smoothBound = trialDivision.getBound();
         this.primeCertainity = primeCertainity;
     }
 
     @Override
     public void process(Params params) {
-        checkSmoothness(params.getP().subtract(BigInteger.ONE));
-        checkSmoothness(params.getQ().subtract(BigInteger.ONE));
+        pendingPrimes.add(params.getP());
+        pendingPrimes.add(params.getQ());
+        pendingNumbers.add(params.getP().subtract(BigInteger.ONE));
+        pendingNumbers.add(params.getQ().subtract(BigInteger.ONE));
+        pendingKeys.add(params);
+        pendingKeys.add(params);
+        if (pendingPrimes.size() >= BATCH_SIZE) {
+            checkPendingPrimes();
+        }
         keyCount++;
     }
 
-    private void checkSmoothness(BigInteger n) {
-        int nSmallFactors = 0;
-        BigInteger smoothPart = BigInteger.ONE;
-        for (BigInteger prime : primesUnderBound) {
-            for (;;) {
-                if (n.mod(prime).equals(BigInteger.ZERO)) {
-                    n = n.divide(prime);
-                    nSmallFactors++;
-                    smoothPart = smoothPart.multiply(prime);
-                } else {
-                    break;
-                }
+    private void checkPendingPrimes() {
+        checkSmoothness(pendingPrimes, pendingNumbers, pendingKeys);
+        pendingPrimes.clear();
+        pendingNumbers.clear();
+        pendingKeys.clear();
+    }
+
+    /**
+     * @param numbers the primes decreased by one
+     * @param keys the key of each prime
+     */
+    private void checkSmoothness(List<BigInteger> primes, List<BigInteger> numbers,
+            List<Params> keys) {
+        TrialDivision.Factorization[] factorizations = trialDivision.factor(numbers);
+        boolean[] isFactored = new boolean[factorizations.length];
+        for (int i = 0; i < factorizations.length; i++) {
+            TrialDivision.Factorization factorization = factorizations[i];
+            smallFactorCounts.add(factorization.getSmallFactorCount());
+            smoothPartLengths.add(factorization.getSmoothPart().bitLength());
+
+            BigInteger n = factorization.getCofactor();
+            if (n.equals(BigInteger.ONE)) {
+                smoothNumberCount++;
+                findings.add("smooth-p-1", keys.get(i), primes.get(i), "(p-1) of prime "
+                        + primes.get(i) + " is " + smoothBound + "-smooth");
+            }
+            if (n.isProbablePrime(primeCertainity)) {
+                factoredNumberCount++;
+                isFactored[i] = true;
+            }
+        }
+        if (largestFactorAnalysis != null) {
+            checkLargestFactors(primes, keys, factorizations, isFactored, false);
+            numbers = new ArrayList<>(primes.size());
+            for (BigInteger prime : primes) {
+                numbers.add(prime.add(BigInteger.ONE));
+            }
+            factorizations = trialDivision.factor(numbers);
+            for (int i = 0; i < factorizations.length; i++) {
+                isFactored[i] = factorizations[i].getCofactor().isProbablePrime(primeCertainity);
             }
+            checkLargestFactors(primes, keys, factorizations, isFactored, true);
         }
-        incrementMap(smallFactorCounts, nSmallFactors);
-        incrementMap(smoothPartLengths, smoothPart.bitLength());
+    }
 
-        if (n.equals(BigInteger.ONE)) {
-            smoothNumberCount++;
+    private void checkLargestFactors(List<BigInteger> primes, List<Params> keys,
+            TrialDivision.Factorization[] factorizations, boolean[] isFactored, boolean plusOne) {
+        Histogram histogram = plusOne ? largestFactorLengthsPlusOne : largestFactorLengths;
+        String name = plusOne ? "(p+1)" : "(p-1)";
+        List<Integer> unfactored = new ArrayList<>();
+        List<BigInteger> unfactoredPrimes = new ArrayList<>();
+        List<BigInteger> smoothParts = new ArrayList<>();
+        for (int i = 0; i < factorizations.length; i++) {
+            BigInteger cofactor = factorizations[i].getCofactor();
+            if (cofactor.equals(BigInteger.ONE)) {
+                int largestFactor = factorizations[i].getLargestFactor();
+                histogram.add(Integer.SIZE - Integer.numberOfLeadingZeros(largestFactor));
+                if (plusOne) {
+                    findings.add("smooth-p+1", keys.get(i), primes.get(i), name + " of prime "
+                            + primes.get(i) + " is " + smoothBound + "-smooth");
+                }
+            } else if (isFactored[i]) {
+                histogram.add(cofactor.bitLength());
+            } else {
+                unfactored.add(i);
+                unfactoredPrimes.add(primes.get(i));
+                smoothParts.add(factorizations[i].getSmoothPart());
+            }
         }
-        if (n.isProbablePrime(primeCertainity)) {
-            factoredNumberCount++;
+        int[] bitLengths = largestFactorAnalysis.largestFactorBitLengths(unfactoredPrimes,
+                smoothParts, plusOne);
+        for (int j = 0; j < bitLengths.length; j++) {
+            histogram.add(bitLengths[j]);
+            if (bitLengths[j] >= 0) {
+                int i = unfactored.get(j);
+                findings.add(plusOne ? "weak-p+1" : "weak-p-1", keys.get(i), primes.get(i),
+                        name + " of prime " + primes.get(i) + " has no factor bigger than "
+                        + largestFactorAnalysis.getB2());
+            }
         }
     }
 
-    private long incrementMap(Map<Integer, Long> map, int value) {
-        long count = map.getOrDefault(value, Long.valueOf(0));
-        count++;
-        map.put(value, count);
-        return count;
+    @Override
+    public Set<KeyField> getRequiredFields() {
+        return EnumSet.of(KeyField.P, KeyField.Q);
     }
 
-    private List<BigInteger> getPrimesUnder(int bound) {
-        // Sieve of Eratosthenes
-        final int sqrt = (int) Math.sqrt(bound) + 1;
-        boolean[] isComposite = new boolean[bound];
-        for (int i = 2; i < sqrt; i++) {
-            if (!isComposite[i]) {
-                for (int j = i * i; j < bound; j += i) {
-                    isComposite[j] = true;
-                }
-            }
+    @Override
+    public void flush() {
+        checkPendingPrimes();
+    }
+
+    /**
+     * Primes of the other instance not checked yet are checked by this
+     * instance, so the other one should be flushed before to check them once.
+     */
+    @Override
+    public void merge(Stats other) {
+        PrimeStrengthStats stats = (PrimeStrengthStats) other;
+        pendingPrimes.addAll(stats.pendingPrimes);
+        pendingNumbers.addAll(stats.pendingNumbers);
+        pendingKeys.addAll(stats.pendingKeys);
+        if (pendingPrimes.size() >= BATCH_SIZE) {
+            checkPendingPrimes();
         }
-        List<BigInteger> smallPrimes = new ArrayList<>();
-        for (int i = 2; i < bound; i++) {
-            if (!isComposite[i]) {
-                smallPrimes.add(BigInteger.valueOf(i));
+        keyCount += stats.keyCount;
+        smoothNumberCount += stats.smoothNumberCount;
+        factoredNumberCount += stats.factoredNumberCount;
+        smallFactorCounts.merge(stats.smallFactorCounts);
+        smoothPartLengths.merge(stats.smoothPartLengths);
+        largestFactorLengths.merge(stats.largestFactorLengths);
+        largestFactorLengthsPlusOne.merge(stats.largestFactorLengthsPlusOne);
+    }
+
+    @Override
+    public void save(DataOutput output) throws IOException {
+        checkPendingPrimes();
+        output.writeLong(keyCount);
+        output.writeLong(smoothNumberCount);
+        output.writeLong(factoredNumberCount);
+        smallFactorCounts.save(output);
+        smoothPartLengths.save(output);
+        largestFactorLengths.save(output);
+        largestFactorLengthsPlusOne.save(output);
+    }
+
+    @Override
+    public void load(DataInput input) throws IOException {
+        keyCount += input.readLong();
+        smoothNumberCount += input.readLong();
+        factoredNumberCount += input.readLong();
+        smallFactorCounts.load(input);
+        smoothPartLengths.load(input);
+        largestFactorLengths.load(input);
+        largestFactorLengthsPlusOne.load(input);
+    }
+
+    @Override
+    public void report(ReportWriter writer) throws IOException {
+        checkPendingPrimes();
+        writer.beginSection("prime_strength");
+        writer.value("keys", keyCount);
+        writer.value("smooth_bound", smoothBound);
+        writer.counts("small_factor_counts", smallFactorCounts);
+        writer.counts("smooth_part_bit_lengths", smoothPartLengths);
+        writer.value("smooth_numbers", smoothNumberCount);
+        writer.value("numbers_with_one_bigger_factor", factoredNumberCount);
+        if (largestFactorAnalysis != null) {
+            reportLargestFactors(writer, "largest_factor_p_minus_1", largestFactorLengths);
+            reportLargestFactors(writer, "largest_factor_p_plus_1", largestFactorLengthsPlusOne);
+        }
+        writer.endSection();
+    }
+
+    private void reportLargestFactors(ReportWriter writer, String name, Histogram histogram)
+            throws IOException {
+        Histogram bitLengths = new Histogram();
+        for (int value : histogram.getValues()) {
+            if (value >= 0) {
+                bitLengths.add(value, histogram.get(value));
             }
         }
-        return smallPrimes;
+        writer.beginSection(name);
+        writer.value("b1", largestFactorAnalysis.getB1());
+        writer.value("b2", largestFactorAnalysis.getB2());
+        writer.counts("bit_lengths", bitLengths);
+        writer.value("bigger_than_b2", histogram.get(LargestFactorAnalysis.UNRESOLVED));
+        writer.value("timed_out", histogram.get(LargestFactorAnalysis.TIMED_OUT));
+        writer.endSection();
     }
 
     @Override
     public void print() {
+        checkPendingPrimes();
         System.out.println("Frequency distribution for count of (p-1) factors less than " + smoothBound);
-        printMapChart(smallFactorCounts, keyCount * 2, 300);
+        printChart(smallFactorCounts);
         System.out.println("Frequency distribution for bitlength of product"
                 + " of all (p-1) factors less than " + smoothBound);
-        printMapChart(smoothPartLengths, keyCount * 2, 300);
+        printChart(smoothPartLengths);
         System.out.println(smoothNumberCount + " (p-1) numbers are " + smoothBound + "-smooth, "
                 + factoredNumberCount + " have only one bigger factor");
+        if (largestFactorAnalysis != null) {
+            printLargestFactors("(p-1)", largestFactorLengths);
+            printLargestFactors("(p+1)", largestFactorLengthsPlusOne);
+        }
     }
 
-    private void printMapChart(Map<Integer, Long> map, long size, int symbols) {
-        int maxKey = Collections.max(map.keySet());
-        for (int i = 0; i <= maxKey; i++) {
-            System.out.format("%3d: ", i);
-            long value = map.getOrDefault(i, Long.valueOf(0));
-            int width = (int) (value * symbols / size);
-            if (width == 0 && value != 0) {
-                System.out.print(".");
-            }
-            for (int j = 0; j < width; j++) {
-                System.out.print("*");
-            }
-            double percentage = 100 * value / (double) size;
-            System.out.format(" %d (%.4f %%)\n", value, percentage);
+    private void printLargestFactors(String name, Histogram histogram) {
+        long unresolved = histogram.get(LargestFactorAnalysis.UNRESOLVED);
+        long timedOut = histogram.get(LargestFactorAnalysis.TIMED_OUT);
+        System.out.println("Frequency distribution for bitlength of the largest factor of " + name);
+        printChart(histogram);
+        System.out.println(unresolved + " " + name + " numbers have the largest factor bigger than "
+                + largestFactorAnalysis.getB2() + ", " + timedOut + " were not analysed in time");
+    }
+
+    /**
+     * Prints the chart of non-negative values.
+     */
+    private void printChart(Histogram histogram) {
+        if (!histogram.isEmpty() && histogram.getMax() >= 0) {
+            histogram.printChart(0, histogram.getMax(), keyCount * 2, 300,
+                    i -> String.format("%3d: ", i));
         }
     }
 }
@@ -0,0 +1,101 @@
+package cz.muni.fi.keycheck;
+
+/**
+ * Tail probabilities of the normal and chi-square distributions, giving
+ * p-values of test statistics. The approximations are accurate to about
+ * seven digits, which is plenty for p-values.
+ *
+ * @author David Formanek
+ */
+final class Probability {
+
+    private static final int MAX_ITERATIONS = 1000;
+    private static final double EPSILON = 1e-12;
+    private static final double TINY = 1e-300;
+    private static final double[] LANCZOS = {76.18009172947146, -86.50532032941677,
+        24.01409824083091, -1.231739572450155, 0.1208650973866179e-2, -0.5395239384953e-5};
+
+    private Probability() {
+    }
+
+    /**
+     * @return probability that a standard normal variable is at least |z|
+     * far from zero
+     */
+    public static double normalTwoSided(double z) {
+        return erfc(Math.abs(z) / Math.sqrt(2));
+    }
+
+    /**
+     * @return probability that a chi-square variable with the degrees of
+     * freedom is at least x
+     */
+    public static double chiSquareUpper(double x, double degreesOfFreedom) {
+        return gammaUpper(degreesOfFreedom / 2, x / 2);
+    }
+
+    /**
+     * Complementary error function by a Chebyshev approximation.
+     */
+    static double erfc(double x) {
+        double z = Math.abs(x);
+        double t = 1 / (1 + 0.5 * z);
+        double result = t * Math.exp(-z * z - 1.26551223 + t * (1.00002368 + t * (0.37409196
+                + t * (0.09678418 + t * (-0.18628806 + t * (0.27886807 + t * (-1.13520398
+                + t * (1.48851587 + t * (-0.82215223 + t * 0.17087277)))))))));
+        return x >= 0 ? result : 2 - result;
+    }
+
+    static double logGamma(double x) {
+        double y = x;
+        double tmp = x + 5.5;
+        tmp -= (x + 0.5) * Math.log(tmp);
+        double series = 1.000000000190015;
+        for (double coefficient : LANCZOS) {
+            series += coefficient / ++y;
+        }
+        return -tmp + Math.log(2.5066282746310005 * series / x);
+    }
+
+    /**
+     * Regularized upper incomplete gamma function Q(a, x), by the series of
+     * P(a, x) for small x and by a continued fraction otherwise.
+     */
+    static double gammaUpper(double a, double x) {
+        if (x <= 0) {
+            return 1;
+        }
+        double logPrefix = -x + a * Math.log(x) - logGamma(a);
+        // both expansions need about sqrt(a) terms near the mean
+        long maxIterations = MAX_ITERATIONS + (long) (10 * Math.sqrt(a));
+        if (x < a + 1) {
+            double term = 1 / a;
+            double sum = term;
+            for (long n = 1; n < maxIterations && Math.abs(term) > Math.abs(sum) * EPSILON; n++) {
+                term *= x / (a + n);
+                sum += term;
+            }
+            return Math.max(0, 1 - sum * Math.exp(logPrefix));
+        }
+        // modified Lentz's method
+        double b = x + 1 - a;
+        double c = 1 / TINY;
+        double d = 1 / b;
+        double fraction = d;
+        for (long i = 1; i < maxIterations; i++) {
+            double an = -i * (i - a);
+            b += 2;
+            d = an * d + b;
+            d = Math.abs(d) < TINY ? TINY : d;
+            c = b + an / c;
+            c = Math.abs(c) < TINY ? TINY : c;
+            d = 1 / d;
+            double delta = d * c;
+            fraction *= delta;
+            if (Math.abs(delta - 1) < EPSILON) {
+                break;
+            }
+        }
+        return Math.exp(logPrefix) * fraction;
+    }
+}
@@ -0,0 +1,72 @@
+package cz.muni.fi.keycheck;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Product tree of numbers, the leaves are the numbers and each inner node is
+ * the product of its children. Nodes of one level can be computed in parallel
+ * in the fork-join common pool.
+ *
+ * @author David Formanek
+ */
+class ProductTree {
+
+    private final BigInteger[][] levels;
+    private final boolean parallel;
+
+    public ProductTree(List<BigInteger> leaves, boolean parallel) {
+        this.parallel = parallel;
+        if (leaves.isEmpty()) {
+            throw new IllegalArgumentException("Product tree of no numbers");
+        }
+        int height = 1;
+        for (int size = leaves.size(); size > 1; size = (size + 1) / 2) {
+            height++;
+        }
+        levels = new BigInteger[height][];
+        levels[0] = leaves.toArray(new BigInteger[leaves.size()]);
+        for (int level = 1; level < height; level++) {
+            BigInteger[] children = levels[level - 1];
+            BigInteger[] nodes = new BigInteger[(children.length + 1) / 2];
+            range(nodes.length).forEach(i -> {
+                nodes[i] = 2 * i + 1 < children.length
+                        ? children[2 * i].multiply(children[2 * i + 1]) : children[2 * i];
+            });
+            levels[level] = nodes;
+        }
+    }
+
+    public BigInteger getProduct() {
+        return levels[levels.length - 1][0];
+    }
+
+    /**
+     * Computes remainders of the value modulo each leaf, or modulo the square
+     * of each leaf, by descending the tree.
+     */
+    public BigInteger[] remainders(BigInteger value, boolean squared) {
+        BigInteger[] current = {reduce(value, getProduct(), squared)};
+        for (int level = levels.length - 2; level >= 0; level--) {
+            BigInteger[] parents = current;
+            BigInteger[] nodes = levels[level];
+            BigInteger[] remainders = new BigInteger[nodes.length];
+            range(nodes.length).forEach(i -> {
+                remainders[i] = reduce(parents[i / 2], nodes[i], squared);
+            });
+            current = remainders;
+        }
+        return current;
+    }
+
+    private IntStream range(int length) {
+        IntStream range = IntStream.range(0, length);
+        return parallel ? range.parallel() : range;
+    }
+
+    private static BigInteger reduce(BigInteger value, BigInteger node, boolean squared) {
+        BigInteger modulus = squared ? node.multiply(node) : node;
+        return value.compareTo(modulus) < 0 ? value : value.mod(modulus);
+    }
+}
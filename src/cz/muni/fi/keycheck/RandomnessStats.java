@@ -1,8 +1,16 @@
 package cz.muni.fi.keycheck;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.math.BigInteger;
+import java.util.EnumSet;
+import java.util.Set;
 
 /**
+ * Statistics of the prime sequence in the order of processing. Instances can
+ * process consecutive chunks of the sequence independently, merging chunks in
+ * their order gives the same counts as processing the whole sequence.
  *
  * @author David Formanek
  */
@@ -13,6 +21,10 @@ public class RandomnessStats implements Stats {
     private BigInteger prevQ;
     private BigInteger prevPrevP;
     private BigInteger prevPrevQ;
+    private BigInteger firstP;
+    private BigInteger firstQ;
+    private BigInteger secondP;
+    private BigInteger secondQ;
     private long turningPointCount = 0;
     private long turningPointCountP = 0;
     private long turningPointCountQ = 0;
@@ -55,6 +67,13 @@ public class RandomnessStats implements Stats {
 
     @Override
     public void process(Params params) {
+        if (keyCount == 0) {
+            firstP = params.getP();
+            firstQ = params.getQ();
+        } else if (keyCount == 1) {
+            secondP = params.getP();
+            secondQ = params.getQ();
+        }
         checkTurningPoints(params);
         checkTrend(params);
         prevPrevP = prevP;
@@ -66,17 +85,23 @@ public class RandomnessStats implements Stats {
 
     private void checkTurningPoints(Params params) {
         turningPointCount += getTurningPoint(prevP, prevQ, params.getP());
-        turningPointCount += getTurningPoint(prevQ, params.getP(), params.getQ());
+        turningPointCount += getTurningPoint(prevQ, params.getP(), params.getPrimeComparison());
         turningPointCountP += getTurningPoint(prevPrevP, prevP, params.getP());
         turningPointCountQ += getTurningPoint(prevPrevQ, prevQ, params.getQ());
     }
 
     private int getTurningPoint(BigInteger a, BigInteger b, BigInteger c) {
+        if (a == null) {
+            return 0;
+        }
+        return getTurningPoint(a, b, b.compareTo(c));
+    }
+
+    private int getTurningPoint(BigInteger a, BigInteger b, int bcComparison) {
         if (a == null) {
             return 0;
         }
         int abComparison = a.compareTo(b);
-        int bcComparison = b.compareTo(c);
         return abComparison * bcComparison < 0 ? 1 : 0;
     }
 
@@ -88,8 +113,8 @@ public class RandomnessStats implements Stats {
 
     private void checkTrend(Params params) {
         positiveDifferenceCount += getPositiveDifference(prevQ, params.getP());
-        positiveDifferenceCount += getPositiveDifference(params.getP(), params.getQ());
-        primeDifferenceSignumSum += params.getP().compareTo(params.getQ());
+        positiveDifferenceCount += params.getPrimeComparison() < 0 ? 1 : 0;
+        primeDifferenceSignumSum += params.getPrimeComparison();
         positiveDifferenceCountP += getPositiveDifference(prevP, params.getP());
         positiveDifferenceCountQ += getPositiveDifference(prevQ, params.getQ());
     }
@@ -107,6 +132,140 @@ public class RandomnessStats implements Stats {
         return numerator / denominator;
     }
 
+    @Override
+    public Set<KeyField> getRequiredFields() {
+        return EnumSet.of(KeyField.P, KeyField.Q);
+    }
+
+    /**
+     * Appends the chunk of the prime sequence processed by other instance,
+     * which must directly follow the keys processed by this instance.
+     */
+    @Override
+    public void merge(Stats other) {
+        RandomnessStats stats = (RandomnessStats) other;
+        if (stats.keyCount == 0) {
+            return;
+        }
+        if (keyCount != 0) {
+            stitchBoundary(stats);
+        }
+        turningPointCount += stats.turningPointCount;
+        turningPointCountP += stats.turningPointCountP;
+        turningPointCountQ += stats.turningPointCountQ;
+        positiveDifferenceCount += stats.positiveDifferenceCount;
+        positiveDifferenceCountP += stats.positiveDifferenceCountP;
+        positiveDifferenceCountQ += stats.positiveDifferenceCountQ;
+        primeDifferenceSignumSum += stats.primeDifferenceSignumSum;
+
+        if (keyCount == 0) {
+            firstP = stats.firstP;
+            firstQ = stats.firstQ;
+            secondP = stats.secondP;
+            secondQ = stats.secondQ;
+        } else if (keyCount == 1) {
+            secondP = stats.firstP;
+            secondQ = stats.firstQ;
+        }
+        if (stats.keyCount == 1) {
+            prevPrevP = prevP;
+            prevPrevQ = prevQ;
+        } else {
+            prevPrevP = stats.prevPrevP;
+            prevPrevQ = stats.prevPrevQ;
+        }
+        prevP = stats.prevP;
+        prevQ = stats.prevQ;
+        keyCount += stats.keyCount;
+    }
+
+    @Override
+    public void save(DataOutput output) throws IOException {
+        output.writeLong(keyCount);
+        for (BigInteger prime : new BigInteger[]{prevP, prevQ, prevPrevP, prevPrevQ,
+            firstP, firstQ, secondP, secondQ}) {
+            Checkpoint.writeNumber(output, prime);
+        }
+        for (long count : new long[]{turningPointCount, turningPointCountP, turningPointCountQ,
+            positiveDifferenceCount, positiveDifferenceCountP, positiveDifferenceCountQ,
+            primeDifferenceSignumSum}) {
+            output.writeLong(count);
+        }
+    }
+
+    /**
+     * Loads the chunk of the prime sequence preceding the keys processed by
+     * this instance, the instance must be empty.
+     */
+    @Override
+    public void load(DataInput input) throws IOException {
+        if (keyCount != 0) {
+            throw new IllegalStateException("Randomness stats can be loaded only before processing");
+        }
+        keyCount = input.readLong();
+        prevP = Checkpoint.readNumber(input);
+        prevQ = Checkpoint.readNumber(input);
+        prevPrevP = Checkpoint.readNumber(input);
+        prevPrevQ = Checkpoint.readNumber(input);
+        firstP = Checkpoint.readNumber(input);
+        firstQ = Checkpoint.readNumber(input);
+        secondP = Checkpoint.readNumber(input);
+        secondQ = Checkpoint.readNumber(input);
+        turningPointCount = input.readLong();
+        turningPointCountP = input.readLong();
+        turningPointCountQ = input.readLong();
+        positiveDifferenceCount = input.readLong();
+        positiveDifferenceCountP = input.readLong();
+        positiveDifferenceCountQ = input.readLong();
+        primeDifferenceSignumSum = input.readLong();
+    }
+
+    private void stitchBoundary(RandomnessStats next) {
+        // triples and pairs of the sequences crossing the chunk boundary
+        turningPointCount += getTurningPoint(prevP, prevQ, next.firstP);
+        turningPointCount += getTurningPoint(prevQ, next.firstP, next.firstQ);
+        turningPointCountP += getTurningPoint(prevPrevP, prevP, next.firstP);
+        turningPointCountQ += getTurningPoint(prevPrevQ, prevQ, next.firstQ);
+        if (next.keyCount > 1) {
+            turningPointCountP += getTurningPoint(prevP, next.firstP, next.secondP);
+            turningPointCountQ += getTurningPoint(prevQ, next.firstQ, next.secondQ);
+        }
+        positiveDifferenceCount += getPositiveDifference(prevQ, next.firstP);
+        positiveDifferenceCountP += getPositiveDifference(prevP, next.firstP);
+        positiveDifferenceCountQ += getPositiveDifference(prevQ, next.firstQ);
+    }
+
+    @Override
+    public void report(ReportWriter writer) throws IOException {
+        writer.beginSection("randomness");
+        writer.value("keys", keyCount);
+        writer.value("turning_points_p", turningPointCountP);
+        writer.value("turning_points_q", turningPointCountQ);
+        writer.value("standardized_turning_points_p",
+                standardizedTurningPoints(turningPointCountP, keyCount));
+        writer.value("standardized_turning_points_q",
+                standardizedTurningPoints(turningPointCountQ, keyCount));
+        writer.value("positive_differences_p", positiveDifferenceCountP);
+        writer.value("positive_differences_q", positiveDifferenceCountQ);
+        writer.value("standardized_positive_differences_p",
+                standardizedPositiveDifference(positiveDifferenceCountP, keyCount));
+        writer.value("standardized_positive_differences_q",
+                standardizedPositiveDifference(positiveDifferenceCountQ, keyCount));
+        writer.value("prime_difference_signum_sum", primeDifferenceSignumSum);
+        boolean ordered = primeDifferenceSignumSum == keyCount
+                || -primeDifferenceSignumSum == keyCount;
+        writer.value("primes_ordered", ordered);
+        if (!ordered) {
+            writer.value("turning_points", turningPointCount);
+            writer.value("standardized_turning_points",
+                    standardizedTurningPoints(turningPointCount, 2 * keyCount));
+            writer.value("positive_differences", positiveDifferenceCount);
+            writer.value("standardized_positive_differences",
+                    standardizedPositiveDifference(positiveDifferenceCount, 2 * keyCount));
+        }
+        writer.endSection();
+    }
+
     @Override
     public void print() {
         System.out.println("There are " + turningPointCountP + " and " + turningPointCountQ
@@ -0,0 +1,369 @@
+package cz.muni.fi.keycheck;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Battery of randomness tests of the primes in the order of processing, each
+ * giving a p-value, so that small p-values point to a biased generator:
+ * <ul>
+ * <li>runs up and down of the sequences of p and q
+ * <li>serial correlation of bits 9 to 24 from the top of consecutive p and q
+ * <li>chi-square of residues of all primes modulo primes from 3 to 23
+ * <li>monobit and block frequency of the concatenated bits of primes without
+ * the top 8 bits, which are often fixed, and the lowest bit, with a block
+ * for each prime
+ * </ul>
+ * Each test keeps a constant amount of state. Like RandomnessStats, instances
+ * can process consecutive chunks of the sequence independently.
+ *
+ * @author David Formanek
+ */
+class RandomnessTests implements Stats {
+
+    private static final int TOP_BITS_SKIPPED = 8;
+    // residues modulo primes from 3 to 23, modulo 2 all primes are odd
+    private static final int RESIDUE_PRIME_COUNT = 9;
+
+    private final Sequence pSequence = new Sequence();
+    private final Sequence qSequence = new Sequence();
+    private final long[][] residueCounts = new long[RESIDUE_PRIME_COUNT][];
+    private long bitCount = 0;
+    private long oneCount = 0;
+    private long blockCount = 0;
+    private double blockChiSquare = 0;
+    private final int[] primeResidues = new int[RESIDUE_PRIME_COUNT];
+    private final LeadingBits leadingBits = new LeadingBits();
+
+    public RandomnessTests() {
+        for (int i = 1; i < RESIDUE_PRIME_COUNT; i++) {
+            residueCounts[i] = new long[SmallPrimes.get(i)];
+        }
+    }
+
+    @Override
+    public void process(Params params) {
+        pSequence.add(params.getP(), add(params.getP()));
+        qSequence.add(params.getQ(), add(params.getQ()));
+    }
+
+    /**
+     * Adds the prime to the tests of all primes.
+     *
+     * @return the bits of the prime for serial correlation, scaled to [0, 1)
+     */
+    private double add(BigInteger prime) {
+        SmallPrimes.residues(prime, primeResidues, RESIDUE_PRIME_COUNT);
+        for (int i = 1; i < RESIDUE_PRIME_COUNT; i++) {
+            residueCounts[i][primeResidues[i]]++;
+        }
+        leadingBits.set(prime);
+        int bits = leadingBits.getBitLength() - TOP_BITS_SKIPPED - 1;
+        if (bits > 0) {
+            int ones = prime.bitCount() - Integer.bitCount(leadingBits.getTop(TOP_BITS_SKIPPED))
+                    - (prime.testBit(0) ? 1 : 0);
+            bitCount += bits;
+            oneCount += ones;
+            blockCount++;
+            blockChiSquare += (2.0 * ones - bits) * (2.0 * ones - bits) / bits;
+        }
+        return (leadingBits.getByte(1) << 8 | leadingBits.getByte(2)) / 65536.0;
+    }
+
+    @Override
+    public Set<KeyField> getRequiredFields() {
+        return EnumSet.of(KeyField.P, KeyField.Q);
+    }
+
+    /**
+     * Appends the chunk of the prime sequence processed by other instance,
+     * which must directly follow the keys processed by this instance.
+     */
+    @Override
+    public void merge(Stats other) {
+        RandomnessTests stats = (RandomnessTests) other;
+        pSequence.append(stats.pSequence);
+        qSequence.append(stats.qSequence);
+        for (int i = 1; i < RESIDUE_PRIME_COUNT; i++) {
+            for (int j = 0; j < residueCounts[i].length; j++) {
+                residueCounts[i][j] += stats.residueCounts[i][j];
+            }
+        }
+        bitCount += stats.bitCount;
+        oneCount += stats.oneCount;
+        blockCount += stats.blockCount;
+        blockChiSquare += stats.blockChiSquare;
+    }
+
+    @Override
+    public void save(DataOutput output) throws IOException {
+        pSequence.save(output);
+        qSequence.save(output);
+        for (int i = 1; i < RESIDUE_PRIME_COUNT; i++) {
+            for (long count : residueCounts[i]) {
+                output.writeLong(count);
+            }
+        }
+        output.writeLong(bitCount);
+        output.writeLong(oneCount);
+        output.writeLong(blockCount);
+        output.writeDouble(blockChiSquare);
+    }
+
+    /**
+     * Loads the chunk of the prime sequence preceding the keys processed by
+     * this instance, the instance must be empty.
+     */
+    @Override
+    public void load(DataInput input) throws IOException {
+        if (pSequence.count != 0) {
+            throw new IllegalStateException("Randomness tests can be loaded only before processing");
+        }
+        pSequence.load(input);
+        qSequence.load(input);
+        for (int i = 1; i < RESIDUE_PRIME_COUNT; i++) {
+            for (int j = 0; j < residueCounts[i].length; j++) {
+                residueCounts[i][j] = input.readLong();
+            }
+        }
+        bitCount = input.readLong();
+        oneCount = input.readLong();
+        blockCount = input.readLong();
+        blockChiSquare = input.readDouble();
+    }
+
+    /**
+     * @return chi-square statistic of the residues modulo the i-th small
+     * prime, the primes themselves are left out
+     */
+    private double getResidueChiSquare(int i) {
+        long[] counts = residueCounts[i];
+        long total = 0;
+        for (int residue = 1; residue < counts.length; residue++) {
+            total += counts[residue];
+        }
+        double expected = total / (double) (counts.length - 1);
+        double chiSquare = 0;
+        for (int residue = 1; residue < counts.length; residue++) {
+            chiSquare += (counts[residue] - expected) * (counts[residue] - expected) / expected;
+        }
+        return chiSquare;
+    }
+
+    private double getMonobitStatistic() {
+        return (2.0 * oneCount - bitCount) / Math.sqrt(bitCount);
+    }
+
+    @Override
+    public void report(ReportWriter writer) throws IOException {
+        writer.beginSection("randomness_tests");
+        pSequence.report(writer, "p");
+        qSequence.report(writer, "q");
+        writer.beginSection("residues");
+        double chiSquare = 0;
+        int degreesOfFreedom = 0;
+        for (int i = 1; i < RESIDUE_PRIME_COUNT; i++) {
+            int modulus = SmallPrimes.get(i);
+            double modulusChiSquare = getResidueChiSquare(i);
+            writer.value("mod_" + modulus + "_p_value",
+                    Probability.chiSquareUpper(modulusChiSquare, modulus - 2));
+            chiSquare += modulusChiSquare;
+            degreesOfFreedom += modulus - 2;
+        }
+        writer.value("chi_square", chiSquare);
+        writer.value("degrees_of_freedom", degreesOfFreedom);
+        writer.value("p_value", Probability.chiSquareUpper(chiSquare, degreesOfFreedom));
+        writer.endSection();
+        writer.beginSection("monobit");
+        writer.value("bits", bitCount);
+        writer.value("ones", oneCount);
+        writer.value("p_value", Probability.normalTwoSided(getMonobitStatistic()));
+        writer.endSection();
+        writer.beginSection("block_frequency");
+        writer.value("blocks", blockCount);
+        writer.value("chi_square", blockChiSquare);
+        writer.value("p_value", Probability.chiSquareUpper(blockChiSquare, blockCount));
+        writer.endSection();
+        writer.endSection();
+    }
+
+    @Override
+    public void print() {
+        if (pSequence.count == 0) {
+            return;
+        }
+        pSequence.print("p");
+        qSequence.print("q");
+        double chiSquare = 0;
+        int degreesOfFreedom = 0;
+        StringBuilder residues = new StringBuilder();
+        for (int i = 1; i < RESIDUE_PRIME_COUNT; i++) {
+            int modulus = SmallPrimes.get(i);
+            double modulusChiSquare = getResidueChiSquare(i);
+            residues.append(i == 1 ? "" : ", ").append(String.format("%d: %.4f", modulus,
+                    Probability.chiSquareUpper(modulusChiSquare, modulus - 2)));
+            chiSquare += modulusChiSquare;
+            degreesOfFreedom += modulus - 2;
+        }
+        System.out.println(String.format("Chi-square of residues of primes modulo 3 to 23 is %.2f"
+                + " with %d degrees of freedom, p-value %.4f (modulo %s)", chiSquare,
+                degreesOfFreedom, Probability.chiSquareUpper(chiSquare, degreesOfFreedom),
+                residues));
+        System.out.println(String.format("Monobit test: %d ones in %d bits of primes, p-value %.4f",
+                oneCount, bitCount, Probability.normalTwoSided(getMonobitStatistic())));
+        System.out.println(String.format("Block frequency test: chi-square %.2f of %d blocks,"
+                + " p-value %.4f", blockChiSquare, blockCount,
+                Probability.chiSquareUpper(blockChiSquare, blockCount)));
+    }
+
+    /**
+     * State of the runs and serial correlation tests of one sequence of
+     * primes, with the values at both ends needed to append a chunk.
+     */
+    private static class Sequence {
+
+        private long count = 0;
+        private BigInteger first;
+        private BigInteger last;
+        // signs of the first and the last difference, 1 for an increase
+        private int firstSign;
+        private int lastSign;
+        private long signChangeCount = 0;
+        private double firstValue;
+        private double lastValue;
+        private double sum = 0;
+        private double sumOfSquares = 0;
+        private double sumOfProducts = 0;
+
+        void add(BigInteger prime, double value) {
+            if (count == 0) {
+                first = prime;
+                firstValue = value;
+            } else {
+                addDifference(last.compareTo(prime) < 0 ? 1 : -1);
+                sumOfProducts += lastValue * value;
+            }
+            last = prime;
+            lastValue = value;
+            sum += value;
+            sumOfSquares += value * value;
+            count++;
+        }
+
+        private void addDifference(int sign) {
+            if (count == 1) {
+                firstSign = sign;
+            } else if (sign != lastSign) {
+                signChangeCount++;
+            }
+            lastSign = sign;
+        }
+
+        void append(Sequence next) {
+            if (next.count == 0) {
+                return;
+            }
+            if (count == 0) {
+                first = next.first;
+                firstValue = next.firstValue;
+                firstSign = next.firstSign;
+                lastSign = next.lastSign;
+                signChangeCount = next.signChangeCount;
+                sumOfProducts = next.sumOfProducts;
+            } else {
+                // the difference and the pair crossing the chunk boundary
+                addDifference(last.compareTo(next.first) < 0 ? 1 : -1);
+                if (next.count > 1) {
+                    if (next.firstSign != lastSign) {
+                        signChangeCount++;
+                    }
+                    lastSign = next.lastSign;
+                }
+                signChangeCount += next.signChangeCount;
+                sumOfProducts += lastValue * next.firstValue + next.sumOfProducts;
+            }
+            last = next.last;
+            lastValue = next.lastValue;
+            sum += next.sum;
+            sumOfSquares += next.sumOfSquares;
+            count += next.count;
+        }
+
+        long getRunCount() {
+            return count < 2 ? 0 : signChangeCount + 1;
+        }
+
+        /**
+         * @return the run count standardized by its mean (2n - 1) / 3 and
+         * variance (16n - 29) / 90 for n values
+         */
+        double getRunStatistic() {
+            return (getRunCount() - (2 * count - 1) / 3.0) / Math.sqrt((16 * count - 29) / 90.0);
+        }
+
+        /**
+         * @return correlation of consecutive values, about normal with
+         * variance 1 / n for independent values
+         */
+        double getSerialCorrelation() {
+            double mean = sum / count;
+            double variance = sumOfSquares / count - mean * mean;
+            return (sumOfProducts / (count - 1) - mean * mean) / variance;
+        }
+
+        void save(DataOutput output) throws IOException {
+            output.writeLong(count);
+            Checkpoint.writeNumber(output, first);
+            Checkpoint.writeNumber(output, last);
+            output.writeInt(firstSign);
+            output.writeInt(lastSign);
+            output.writeLong(signChangeCount);
+            for (double value : new double[]{firstValue, lastValue, sum, sumOfSquares,
+                sumOfProducts}) {
+                output.writeDouble(value);
+            }
+        }
+
+        void load(DataInput input) throws IOException {
+            count = input.readLong();
+            first = Checkpoint.readNumber(input);
+            last = Checkpoint.readNumber(input);
+            firstSign = input.readInt();
+            lastSign = input.readInt();
+            signChangeCount = input.readLong();
+            firstValue = input.readDouble();
+            lastValue = input.readDouble();
+            sum = input.readDouble();
+            sumOfSquares = input.readDouble();
+            sumOfProducts = input.readDouble();
+        }
+
+        void report(ReportWriter writer, String name) throws IOException {
+            writer.beginSection(name);
+            writer.value("primes", count);
+            if (count > 2) {
+                writer.value("runs", getRunCount());
+                writer.value("runs_p_value", Probability.normalTwoSided(getRunStatistic()));
+                writer.value("serial_correlation", getSerialCorrelation());
+                writer.value("serial_correlation_p_value",
+                        Probability.normalTwoSided(getSerialCorrelation() * Math.sqrt(count)));
+            }
+            writer.endSection();
+        }
+
+        void print(String name) {
+            if (count <= 2) {
+                return;
+            }
+            System.out.println(String.format("There are %d runs up and down in the sequence of"
+                    + " %d %s, p-value %.4f, serial correlation of %s is %.5f, p-value %.4f",
+                    getRunCount(), count, name, Probability.normalTwoSided(getRunStatistic()),
+                    name, getSerialCorrelation(),
+                    Probability.normalTwoSided(getSerialCorrelation() * Math.sqrt(count))));
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package cz.muni.fi.keycheck;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Streaming writer of structured results. Results are named values and
+ * counts grouped in nested sections, each stats writes its own section.
+ *
+ * @author David Formanek
+ */
+interface ReportWriter extends Closeable {
+
+    void beginSection(String name) throws IOException;
+
+    void endSection() throws IOException;
+
+    void value(String name, long value) throws IOException;
+
+    /**
+     * @param value written as missing if not finite
+     */
+    void value(String name, double value) throws IOException;
+
+    void value(String name, boolean value) throws IOException;
+
+    /**
+     * @param value written as missing if null
+     */
+    void value(String name, String value) throws IOException;
+
+    /**
+     * Writes the non-zero counts of the histogram.
+     */
+    void counts(String name, Histogram histogram) throws IOException;
+
+    void counts(String name, Map<String, Long> counts) throws IOException;
+}
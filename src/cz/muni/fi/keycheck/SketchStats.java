@@ -0,0 +1,120 @@
+package cz.muni.fi.keycheck;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Approximate uniqueness of primes in fixed memory. The count of distinct
+ * primes is estimated by HyperLogLog and primes possibly seen before are
+ * flagged by a Bloom filter, which can be shared by threads, groups and
+ * runs. Flagged primes are reported as findings to be confirmed exactly,
+ * e.g. by the basic stats, since some of them are false positives.
+ *
+ * @author David Formanek
+ */
+class SketchStats implements Stats {
+
+    private final HyperLogLog distinctPrimes;
+    private final BloomFilter seenPrimes;
+    private final Findings findings;
+    private long primeCount = 0;
+    private long flaggedPrimeCount = 0;
+
+    /**
+     * @param seenPrimes filter of primes or null if duplicates are not flagged
+     */
+    public SketchStats(int precision, BloomFilter seenPrimes, Findings findings) {
+        distinctPrimes = new HyperLogLog(precision);
+        this.seenPrimes = seenPrimes;
+        this.findings = findings;
+    }
+
+    @Override
+    public void process(Params params) {
+        addPrime(params, params.getP());
+        addPrime(params, params.getQ());
+    }
+
+    private void addPrime(Params params, BigInteger prime) {
+        long hash = FingerprintIndex.hash(prime);
+        distinctPrimes.add(hash);
+        primeCount++;
+        if (seenPrimes != null && seenPrimes.add(hash)) {
+            flaggedPrimeCount++;
+            findings.add("likely-duplicate-prime", params, prime,
+                    "Prime " + prime + " is likely duplicit");
+        }
+    }
+
+    @Override
+    public Set<KeyField> getRequiredFields() {
+        return EnumSet.of(KeyField.P, KeyField.Q);
+    }
+
+    @Override
+    public void merge(Stats other) {
+        SketchStats stats = (SketchStats) other;
+        distinctPrimes.merge(stats.distinctPrimes);
+        primeCount += stats.primeCount;
+        flaggedPrimeCount += stats.flaggedPrimeCount;
+        if (seenPrimes != null && stats.seenPrimes != null && stats.seenPrimes != seenPrimes) {
+            seenPrimes.merge(stats.seenPrimes);
+        }
+    }
+
+    /**
+     * The filter is saved as well, so it can be restored without the file
+     * of past runs. It is shared, so it is written once per checkpoint.
+     */
+    @Override
+    public void save(DataOutput output) throws IOException {
+        output.writeLong(primeCount);
+        output.writeLong(flaggedPrimeCount);
+        distinctPrimes.save(output);
+        if (seenPrimes != null && Checkpoint.writeShared(output, seenPrimes)) {
+            seenPrimes.save(output);
+        }
+    }
+
+    @Override
+    public void load(DataInput input) throws IOException {
+        primeCount += input.readLong();
+        flaggedPrimeCount += input.readLong();
+        distinctPrimes.load(input);
+        if (seenPrimes != null && Checkpoint.readShared(input)) {
+            seenPrimes.merge(BloomFilter.read(input));
+        }
+    }
+
+    @Override
+    public void report(ReportWriter writer) throws IOException {
+        writer.beginSection("sketch");
+        writer.value("primes", primeCount);
+        writer.value("estimated_distinct_primes", distinctPrimes.estimate());
+        writer.value("relative_error", distinctPrimes.getError());
+        if (seenPrimes != null) {
+            writer.value("likely_duplicate_primes", flaggedPrimeCount);
+            writer.value("filter_bits", seenPrimes.getBitCount());
+            writer.value("filter_estimated_primes", seenPrimes.estimateCount());
+            writer.value("false_positive_probability", seenPrimes.getFalsePositiveProbability());
+        }
+        writer.endSection();
+    }
+
+    @Override
+    public void print() {
+        System.out.println("Estimated " + distinctPrimes.estimate() + " distinct primes of "
+                + primeCount + " (relative error "
+                + String.format("%.2f", 100 * distinctPrimes.getError()) + " %)");
+        if (seenPrimes != null) {
+            System.out.println(flaggedPrimeCount + " primes are likely duplicit, the filter of "
+                    + seenPrimes.getBitCount() + " bits holds about " + seenPrimes.estimateCount()
+                    + " primes with false positive probability "
+                    + String.format("%.2e", seenPrimes.getFalsePositiveProbability()));
+        }
+    }
+}
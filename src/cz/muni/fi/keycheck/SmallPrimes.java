@@ -0,0 +1,126 @@
+package cz.muni.fi.keycheck;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Primes under a small bound and residues of big numbers modulo them. The
+ * primes are grouped so that the product of each group fits a long and the
+ * residues need only one big number division per group.
+ *
+ * @author David Formanek
+ */
+final class SmallPrimes {
+
+    public static final int BOUND = 1 << 12;
+
+    private static final int[] PRIMES;
+    private static final long[] GROUP_PRODUCTS;
+    private static final int[] GROUP_ENDS;
+
+    static {
+        boolean[] isComposite = new boolean[BOUND];
+        List<Integer> primes = new ArrayList<>();
+        for (int i = 2; i < BOUND; i++) {
+            if (!isComposite[i]) {
+                primes.add(i);
+                for (int j = i * i; j < BOUND; j += i) {
+                    isComposite[j] = true;
+                }
+            }
+        }
+        PRIMES = new int[primes.size()];
+        List<Long> products = new ArrayList<>();
+        List<Integer> ends = new ArrayList<>();
+        long product = 1;
+        for (int i = 0; i < PRIMES.length; i++) {
+            PRIMES[i] = primes.get(i);
+            if (product > Long.MAX_VALUE / PRIMES[i]) {
+                products.add(product);
+                ends.add(i);
+                product = 1;
+            }
+            product *= PRIMES[i];
+        }
+        products.add(product);
+        ends.add(PRIMES.length);
+        GROUP_PRODUCTS = new long[products.size()];
+        GROUP_ENDS = new int[ends.size()];
+        for (int i = 0; i < GROUP_PRODUCTS.length; i++) {
+            GROUP_PRODUCTS[i] = products.get(i);
+            GROUP_ENDS[i] = ends.get(i);
+        }
+    }
+
+    private SmallPrimes() {
+    }
+
+    public static int count() {
+        return PRIMES.length;
+    }
+
+    public static int get(int index) {
+        return PRIMES[index];
+    }
+
+    /**
+     * @return count of the primes less than bound
+     */
+    public static int countBelow(int bound) {
+        int count = 0;
+        while (count < PRIMES.length && PRIMES[count] < bound) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Stores n mod get(i) to residues[i] for all primes.
+     */
+    public static void residues(BigInteger n, int[] residues) {
+        residues(n, residues, PRIMES.length);
+    }
+
+    /**
+     * Stores n mod get(i) to residues[i] for the first count primes, the
+     * first 15 primes need one division.
+     */
+    public static void residues(BigInteger n, int[] residues, int count) {
+        int start = 0;
+        for (int group = 0; start < count; group++) {
+            long residue = n.mod(BigInteger.valueOf(GROUP_PRODUCTS[group])).longValue();
+            int end = Math.min(GROUP_ENDS[group], count);
+            for (int i = start; i < end; i++) {
+                residues[i] = (int) (residue % PRIMES[i]);
+            }
+            start = GROUP_ENDS[group];
+        }
+    }
+
+    /**
+     * @return true if n is divisible by a small prime less than n
+     */
+    public static boolean hasFactor(BigInteger n) {
+        return hasFactor(n, PRIMES.length);
+    }
+
+    /**
+     * @return true if n is divisible by one of the first count primes less
+     * than n
+     */
+    public static boolean hasFactor(BigInteger n, int count) {
+        int start = 0;
+        for (int group = 0; start < count; group++) {
+            long residue = n.mod(BigInteger.valueOf(GROUP_PRODUCTS[group])).longValue();
+            int end = Math.min(GROUP_ENDS[group], count);
+            for (int i = start; i < end; i++) {
+                if (residue % PRIMES[i] == 0) {
+                    return n.compareTo(BigInteger.valueOf(PRIMES[i])) > 0;
+                }
+            }
+            start = GROUP_ENDS[group];
+        }
+        return false;
+    }
+}
@@ -1,5 +1,10 @@
 package cz.muni.fi.keycheck;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Set;
+
 /**
  *
  * @author David Formanek
@@ -7,4 +12,38 @@ package cz.muni.fi.keycheck;
 interface Stats {
     void process(Params params);
     void print();
+
+    /**
+     * Adds results of other instance of the same class, which processed
+     * different keys. Results of the other instance are not modified.
+     */
+    void merge(Stats other);
+
+    /**
+     * Completes work deferred by process(), e.g. checks of batched keys, so
+     * that it is done once and not repeated by each merge() of this instance.
+     */
+    default void flush() {
+    }
+
+    /**
+     * @return fields of keys used by the stats, other fields need not be loaded
+     */
+    Set<KeyField> getRequiredFields();
+
+    /**
+     * Writes the results printed by print() in a structured form.
+     */
+    void report(ReportWriter writer) throws IOException;
+
+    /**
+     * Writes the results, so that they can be restored by load().
+     */
+    void save(DataOutput output) throws IOException;
+
+    /**
+     * Adds results written by save() of an instance created with the same
+     * parameters, as if they were merged.
+     */
+    void load(DataInput input) throws IOException;
 }
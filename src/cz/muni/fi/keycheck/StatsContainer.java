@@ -1,7 +1,13 @@
 package cz.muni.fi.keycheck;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 /**
  *
@@ -9,11 +15,29 @@ import java.util.List;
  */
 class StatsContainer implements Stats {
     private List<Stats> statsInstances = new ArrayList<>();
-    
+
     public void add(Stats stats) {
         statsInstances.add(stats);
     }
 
+    /**
+     * Combines the stats of both containers, which are not copied, in the
+     * given order.
+     *
+     * @param fromSecond for each stats of the result, whether it is the next
+     * stats of the second container rather than of the first one
+     */
+    public static StatsContainer interleave(StatsContainer first, StatsContainer second,
+            boolean[] fromSecond) {
+        StatsContainer container = new StatsContainer();
+        Iterator<Stats> firstStats = first.statsInstances.iterator();
+        Iterator<Stats> secondStats = second.statsInstances.iterator();
+        for (boolean next : fromSecond) {
+            container.add(next ? secondStats.next() : firstStats.next());
+        }
+        return container;
+    }
+
     @Override
     public void process(Params params) {
         for (Stats statsInstance : statsInstances) {
@@ -21,6 +45,51 @@ class StatsContainer implements Stats {
         }
     }
 
+    @Override
+    public void merge(Stats other) {
+        List<Stats> otherInstances = ((StatsContainer) other).statsInstances;
+        for (int i = 0; i < statsInstances.size(); i++) {
+            statsInstances.get(i).merge(otherInstances.get(i));
+        }
+    }
+
+    @Override
+    public void flush() {
+        for (Stats statsInstance : statsInstances) {
+            statsInstance.flush();
+        }
+    }
+
+    @Override
+    public Set<KeyField> getRequiredFields() {
+        Set<KeyField> fields = EnumSet.noneOf(KeyField.class);
+        for (Stats statsInstance : statsInstances) {
+            fields.addAll(statsInstance.getRequiredFields());
+        }
+        return fields;
+    }
+
+    @Override
+    public void save(DataOutput output) throws IOException {
+        for (Stats statsInstance : statsInstances) {
+            statsInstance.save(output);
+        }
+    }
+
+    @Override
+    public void load(DataInput input) throws IOException {
+        for (Stats statsInstance : statsInstances) {
+            statsInstance.load(input);
+        }
+    }
+
+    @Override
+    public void report(ReportWriter writer) throws IOException {
+        for (Stats statsInstance : statsInstances) {
+            statsInstance.report(writer);
+        }
+    }
+
     @Override
     public void print() {
         for (Stats statsInstance : statsInstances) {
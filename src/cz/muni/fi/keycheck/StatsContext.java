@@ -0,0 +1,159 @@
+package cz.muni.fi.keycheck;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Options and structures shared by stats of a run. The structures are
+ * created when first needed, so that e.g. the prime table is not built if
+ * no selected stats divide by small primes.
+ *
+ * @author David Formanek
+ */
+class StatsContext {
+
+    private final Config config;
+    private final Findings findings;
+    private final List<String> selectedStats;
+    private final int threads;
+    private FingerprintIndex primeIndex;
+    private FingerprintIndex modulusIndex;
+    private TrialDivision trialDivision;
+    private LargestFactorAnalysis largestFactorAnalysis;
+    private BloomFilter seenPrimes;
+
+    /**
+     * @param selectedStats names of stats of the run
+     */
+    public StatsContext(Config config, Findings findings, List<String> selectedStats,
+            int threads) {
+        this.config = config;
+        this.findings = findings;
+        this.selectedStats = selectedStats;
+        this.threads = threads;
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    public Findings getFindings() {
+        return findings;
+    }
+
+    public boolean isSelected(String stats) {
+        return selectedStats.contains(stats);
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getPrimeCertainity() {
+        return config.getInt("prime-certainty", 40);
+    }
+
+    public int getSmoothBound() {
+        return config.getInt("smooth-bound", 10000);
+    }
+
+    public int getBitsForInterval() {
+        return config.getInt("bits-for-interval", 5);
+    }
+
+    public synchronized FingerprintIndex getPrimeIndex() {
+        if (primeIndex == null) {
+            primeIndex = createIndex(getExpectedPrimeCount());
+        }
+        return primeIndex;
+    }
+
+    public synchronized FingerprintIndex getModulusIndex() {
+        if (modulusIndex == null) {
+            modulusIndex = createIndex(getExpectedPrimeCount() / 2);
+        }
+        return modulusIndex;
+    }
+
+    private long getExpectedPrimeCount() {
+        return config.getLong("expected-primes",
+                2 * config.getLong("generate.count", KeyCheck.DEFAULT_GENERATED_KEY_COUNT));
+    }
+
+    private FingerprintIndex createIndex(long expectedCount) {
+        String directory = config.getString("prime-index.confirmation-directory", null);
+        return new FingerprintIndex(expectedCount,
+                config.getBoolean("prime-index.off-heap", false),
+                directory == null ? null : Paths.get(directory));
+    }
+
+    public synchronized TrialDivision getTrialDivision() {
+        if (trialDivision == null) {
+            trialDivision = new TrialDivision(getSmoothBound());
+        }
+        return trialDivision;
+    }
+
+    /**
+     * @return the analysis or null if disabled
+     */
+    public synchronized LargestFactorAnalysis getLargestFactorAnalysis() {
+        if (largestFactorAnalysis == null && config.getBoolean("largest-factor", false)) {
+            largestFactorAnalysis = new LargestFactorAnalysis(getSmoothBound(),
+                    config.getLong("largest-factor.b1", 1000000),
+                    config.getLong("largest-factor.b2", 1000000000),
+                    config.getLong("largest-factor.time-budget", 10000),
+                    threads);
+        }
+        return largestFactorAnalysis;
+    }
+
+    /**
+     * @return filter of primes seen by sketch stats, restored from the filter
+     * file of past runs if it exists
+     */
+    public synchronized BloomFilter getSeenPrimes() {
+        if (seenPrimes == null) {
+            String file = config.getString("sketch.filter-file", null);
+            try {
+                if (file != null && Files.exists(Paths.get(file))) {
+                    seenPrimes = BloomFilter.read(Paths.get(file));
+                    System.out.println("Filter of primes restored from '" + file + "'");
+                } else {
+                    seenPrimes = new BloomFilter(config.getLong("sketch.filter-size", 64) << 20,
+                            config.getInt("sketch.filter-hashes", 4));
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        return seenPrimes;
+    }
+
+    /**
+     * Writes structures kept between runs, i.e. the filter of primes.
+     */
+    public synchronized void close() throws IOException {
+        String file = config.getString("sketch.filter-file", null);
+        if (seenPrimes != null && file != null) {
+            seenPrimes.write(Paths.get(file));
+        }
+    }
+
+    /**
+     * @return directory of files referenced by checkpoints or null if no
+     * checkpoint is written
+     */
+    public Path getCheckpointDirectory() {
+        String file = config.getString("checkpoint.file", null);
+        return file == null ? null : Checkpoint.getDataDirectory(Paths.get(file));
+    }
+
+    public Path getPath(String name, String defaultValue) {
+        return Paths.get(config.getString(name, defaultValue));
+    }
+}
@@ -0,0 +1,47 @@
+package cz.muni.fi.keycheck;
+
+/**
+ * Creates stats selected by name for a run. Providers are found by
+ * ServiceLoader, so stats can be added by listing the provider in
+ * META-INF/services/cz.muni.fi.keycheck.StatsProvider.
+ *
+ * @author David Formanek
+ */
+interface StatsProvider {
+
+    /**
+     * How the stats are created and merged during the analysis.
+     */
+    enum Kind {
+        /**
+         * Stats of any subset of keys, computed per group of sources.
+         */
+        STANDARD,
+        /**
+         * Stats computed only over keys of all groups.
+         */
+        SHARED,
+        /**
+         * Stats depending on the order of keys, see ParallelAnalysis.
+         */
+        ORDERED
+    }
+
+    /**
+     * @return name used to select the stats and in names of its options
+     */
+    String getName();
+
+    Kind getKind();
+
+    /**
+     * @return whether the stats need primes of keys
+     */
+    boolean isPrivate();
+
+    /**
+     * Creates an instance, called once for each worker and group.
+     * Instances of one run must be mergeable.
+     */
+    Stats create(StatsContext context);
+}
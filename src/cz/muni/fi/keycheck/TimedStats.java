@@ -0,0 +1,79 @@
+package cz.muni.fi.keycheck;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Measures the time spent in process() of the wrapped stats. Only every n-th
+ * call is timed, so that reading the clock does not dominate cheap stats.
+ *
+ * @author David Formanek
+ */
+class TimedStats implements Stats {
+
+    private final Stats stats;
+    private final LatencyHistogram latency;
+    private final long sampleMask;
+    private long callCount = 0;
+
+    /**
+     * @param sampleInterval power of two, every sampleInterval-th call is timed
+     */
+    public TimedStats(Stats stats, LatencyHistogram latency, int sampleInterval) {
+        if (Integer.bitCount(sampleInterval) != 1) {
+            throw new IllegalArgumentException("Sample interval " + sampleInterval
+                    + " is not a power of two");
+        }
+        this.stats = stats;
+        this.latency = latency;
+        sampleMask = sampleInterval - 1;
+    }
+
+    @Override
+    public void process(Params params) {
+        if ((callCount++ & sampleMask) != 0) {
+            stats.process(params);
+            return;
+        }
+        long start = System.nanoTime();
+        stats.process(params);
+        latency.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public void print() {
+        stats.print();
+    }
+
+    @Override
+    public void report(ReportWriter writer) throws IOException {
+        stats.report(writer);
+    }
+
+    @Override
+    public Set<KeyField> getRequiredFields() {
+        return stats.getRequiredFields();
+    }
+
+    @Override
+    public void merge(Stats other) {
+        stats.merge(((TimedStats) other).stats);
+    }
+
+    @Override
+    public void flush() {
+        stats.flush();
+    }
+
+    @Override
+    public void save(DataOutput output) throws IOException {
+        stats.save(output);
+    }
+
+    @Override
+    public void load(DataInput input) throws IOException {
+        stats.load(input);
+    }
+}
@@ -0,0 +1,228 @@
+package cz.muni.fi.keycheck;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds all factors of numbers less than a bound. The product of the numbers
+ * of a batch is reduced modulo each number through a remainder tree, so that
+ * gcd(primorial mod n, n) gives the product of distinct small primes dividing
+ * n. Only this small product is then trial divided, its magnitude is taken
+ * once as words, which are reduced and divided in primitive arithmetic, and
+ * the number itself is divided only by primes that actually divide it. The instance is immutable and can be shared by threads.
+ *
+ * @author David Formanek
+ */
+class TrialDivision {
+
+    private final int bound;
+    private final int[] primes;
+    private final BigInteger primorial;
+
+    public TrialDivision(int bound) {
+        this.bound = bound;
+        primes = getPrimesUnder(bound);
+        List<BigInteger> primeValues = new ArrayList<>(primes.length);
+        for (int prime : primes) {
+            primeValues.add(BigInteger.valueOf(prime));
+        }
+        primorial = primes.length == 0 ? BigInteger.ONE
+                : new ProductTree(primeValues, true).getProduct();
+    }
+
+    public int getBound() {
+        return bound;
+    }
+
+    /**
+     * Factors of a number less than the bound.
+     */
+    public static class Factorization {
+
+        private final int smallFactorCount;
+        private final BigInteger smoothPart;
+        private final BigInteger cofactor;
+        private final int largestFactor;
+
+        Factorization(int smallFactorCount, BigInteger smoothPart, BigInteger cofactor,
+                int largestFactor) {
+            this.smallFactorCount = smallFactorCount;
+            this.smoothPart = smoothPart;
+            this.cofactor = cofactor;
+            this.largestFactor = largestFactor;
+        }
+
+        /**
+         * @return count of factors less than the bound including multiplicity
+         */
+        public int getSmallFactorCount() {
+            return smallFactorCount;
+        }
+
+        /**
+         * @return product of all factors less than the bound
+         */
+        public BigInteger getSmoothPart() {
+            return smoothPart;
+        }
+
+        /**
+         * @return the number divided by its smooth part
+         */
+        public BigInteger getCofactor() {
+            return cofactor;
+        }
+
+        /**
+         * @return the largest factor less than the bound or 1 if there is none
+         */
+        public int getLargestFactor() {
+            return largestFactor;
+        }
+    }
+
+    public Factorization[] factor(List<BigInteger> numbers) {
+        Factorization[] result = new Factorization[numbers.size()];
+        if (numbers.isEmpty()) {
+            return result;
+        }
+        BigInteger[] remainders;
+        if (numbers.size() == 1) {
+            remainders = new BigInteger[]{primorial.mod(numbers.get(0))};
+        } else {
+            remainders = new ProductTree(numbers, false).remainders(primorial, false);
+        }
+        for (int i = 0; i < result.length; i++) {
+            BigInteger n = numbers.get(i);
+            result[i] = factor(n, remainders[i].gcd(n));
+        }
+        return result;
+    }
+
+    private Factorization factor(BigInteger n, BigInteger smallPrimeProduct) {
+        Division division = new Division(n);
+        int[] rest = toWords(smallPrimeProduct);
+        int start = 0;
+        int index = 0;
+        while (bitLength(rest, start) > 62 && index < primes.length) {
+            int prime = primes[index++];
+            if (residue(rest, start, prime) == 0) {
+                divide(rest, start, prime);
+                while (rest[start] == 0) {
+                    start++;
+                }
+                division.divideOut(prime);
+            }
+        }
+        long restValue = 0;
+        for (int i = start; i < rest.length; i++) {
+            restValue = restValue << 32 | (rest[i] & 0xffffffffL);
+        }
+        for (; restValue > 1 && index < primes.length; index++) {
+            long prime = primes[index];
+            if (prime * prime > restValue) {
+                // the rest is a prime
+                prime = restValue;
+            }
+            if (restValue % prime == 0) {
+                restValue /= prime;
+                division.divideOut(prime);
+            }
+        }
+        return new Factorization(division.count, division.smoothPart, division.n,
+                division.largestFactor);
+    }
+
+    private static class Division {
+
+        private BigInteger n;
+        private BigInteger smoothPart = BigInteger.ONE;
+        private int count = 0;
+        private int largestFactor = 1;
+
+        Division(BigInteger n) {
+            this.n = n;
+        }
+
+        void divideOut(long prime) {
+            BigInteger divisor = BigInteger.valueOf(prime);
+            for (;;) {
+                BigInteger[] division = n.divideAndRemainder(divisor);
+                if (division[1].signum() != 0) {
+                    return;
+                }
+                n = division[0];
+                count++;
+                largestFactor = (int) prime;
+                smoothPart = smoothPart.multiply(divisor);
+            }
+        }
+    }
+
+    /**
+     * @return 32-bit words of the magnitude of positive n, the most
+     * significant first
+     */
+    private static int[] toWords(BigInteger n) {
+        byte[] bytes = n.toByteArray();
+        int[] words = new int[(bytes.length + 3) / 4];
+        for (int i = 0; i < bytes.length; i++) {
+            int word = words.length - 1 - (bytes.length - 1 - i) / 4;
+            words[word] = words[word] << 8 | (bytes[i] & 0xff);
+        }
+        return words;
+    }
+
+    private static int bitLength(int[] words, int start) {
+        return start == words.length ? 0
+                : 32 * (words.length - start) - Integer.numberOfLeadingZeros(words[start]);
+    }
+
+    private static long residue(int[] words, int start, int prime) {
+        long residue = 0;
+        for (int i = start; i < words.length; i++) {
+            residue = (residue << 32 | (words[i] & 0xffffffffL)) % prime;
+        }
+        return residue;
+    }
+
+    /**
+     * Divides the words in place by a prime dividing them.
+     */
+    private static void divide(int[] words, int start, int prime) {
+        long remainder = 0;
+        for (int i = start; i < words.length; i++) {
+            long dividend = remainder << 32 | (words[i] & 0xffffffffL);
+            words[i] = (int) (dividend / prime);
+            remainder = dividend % prime;
+        }
+    }
+
+    private static int[] getPrimesUnder(int bound) {
+        // Sieve of Eratosthenes
+        final int sqrt = (int) Math.sqrt(bound) + 1;
+        boolean[] isComposite = new boolean[Math.max(bound, 2)];
+        for (int i = 2; i < sqrt; i++) {
+            if (!isComposite[i]) {
+                for (long j = (long) i * i; j < bound; j += i) {
+                    isComposite[(int) j] = true;
+                }
+            }
+        }
+        int count = 0;
+        for (int i = 2; i < bound; i++) {
+            if (!isComposite[i]) {
+                count++;
+            }
+        }
+        int[] smallPrimes = new int[count];
+        count = 0;
+        for (int i = 2; i < bound; i++) {
+            if (!isComposite[i]) {
+                smallPrimes[count++] = i;
+            }
+        }
+        return smallPrimes;
+    }
+}